@@ -22,7 +22,9 @@ package org.apache.fop.render.pdf.pdfbox;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.pdfbox.pdmodel.PDDocument;
@@ -63,9 +65,120 @@ public abstract class AbstractPDFBoxHandler {
         final int selectedPage = ImageUtil.needPageIndexFromURI(originalImageUri);
 
         PDDocument srcDoc = image.getPDDocument();
+        PDFDocument pdfDoc = targetPage.getDocument();
+        if (!checkSourceDocument(srcDoc, pdfDoc, eventBroadcaster)) {
+            return null;
+        }
+
+        Map<Object, Object> objectCachePerFile = getObjectCache(getImagePath(originalImageUri), userAgent);
+
+        prepareTargetPage(targetPage, pdfDoc);
+
+        Map<Object, Object> objectCache = getObjectCache(getClass().getName(), userAgent);
+        PDFBoxAdapter adapter = new PDFBoxAdapter(targetPage, objectCachePerFile, usedFieldNames, pageNumbers,
+                objectCache, eventBroadcaster);
+        adapter.shareImportState(getObjectCache(ImportState.class.getName(), userAgent));
+        if (handler != null) {
+            adapter.setCurrentMCID(handler.getPageParentTree().length());
+        }
+        if (PDFImagesConfig.isEnabled(userAgent.getRendererOptions(), PDFImagesConfig.RELEASE_CLONES)) {
+            adapter.releaseClonesOfEarlierPages();
+        }
+        if (isReusingPagesPlacedAgain(userAgent)) {
+            adapter.reusePagesPlacedAgain();
+        }
+        //the image, and with it the source document, may be shared by user agents rendering in other threads
+        synchronized (srcDoc) {
+            PDPage srcPage = srcDoc.getPage(selectedPage);
+            Object stream = adapter.createStreamFromPDFBoxPage(
+                    srcDoc, srcPage, originalImageUri, pageAdjust, fontinfo, destRect, generatorAT);
+            if (userAgent.isAccessibilityEnabled() && curentSessionElem != null) {
+                TaggedPDFConductor conductor = new TaggedPDFConductor(curentSessionElem, handler, srcPage, adapter);
+                conductor.handleLogicalStructure(srcDoc);
+            }
+            return stream;
+        }
+    }
+
+    /**
+     * Imports a contiguous range of pages of a PDF into the given target pages in one pass. The checks of the
+     * source document, the object caches and the lock on the source document are shared by all pages, as are the
+     * clones of resources, fonts, annotations and catalog entries used by several pages. Each page is imported at
+     * its own size, with its lower left corner at the origin of the target page. The pages aren't tagged, so
+     * ranges are rejected with an event when accessibility is enabled.
+     * @param image the source PDF
+     * @param firstPage the zero-based index of the first page to import
+     * @param lastPage the zero-based index of the last page to import
+     * @param targetPages the target pages, one for each page of the range
+     * @param userAgent the user agent, not null
+     * @param fontinfo fonts, may be null unless fonts are merged
+     * @param usedFieldNames form field names used in the target document so far
+     * @param pageNumbers references to page object numbers
+     * @return the content of each target page, a String with the page's content stream or a Form XObject if
+     * those are enabled; null if the source document can't be imported or accessibility is enabled
+     * @throws IOException if an I/O error occurs
+     */
+    protected List<Object> createStreamsForPDF(ImagePDF image, int firstPage, int lastPage,
+                                               List<PDFPage> targetPages, FOUserAgent userAgent, FontInfo fontinfo,
+                                               Map<String, Object> usedFieldNames,
+                                               Map<Integer, PDFArray> pageNumbers) throws IOException {
+        if (targetPages.size() != lastPage - firstPage + 1) {
+            throw new IllegalArgumentException("Expected " + (lastPage - firstPage + 1) + " target pages, got "
+                    + targetPages.size());
+        }
+        if (userAgent == null) {
+            throw new IllegalArgumentException("A user agent is required to import pages");
+        }
+        EventBroadcaster eventBroadcaster = userAgent.getEventBroadcaster();
+        if (userAgent.isAccessibilityEnabled()) {
+            getEventProducer(eventBroadcaster).pageRangeNotTagged(this, image.getInfo().getOriginalURI());
+            return null;
+        }
+        PDDocument srcDoc = image.getPDDocument();
+        PDFDocument pdfDoc = targetPages.get(0).getDocument();
+        if (!checkSourceDocument(srcDoc, pdfDoc, eventBroadcaster)) {
+            return null;
+        }
+        String imagePath = getImagePath(image.getInfo().getOriginalURI());
+        Map<Object, Object> objectCachePerFile = getObjectCache(imagePath, userAgent);
+        Map<Object, Object> objectCache = getObjectCache(getClass().getName(), userAgent);
+        Map<Object, Object> importStates = getObjectCache(ImportState.class.getName(), userAgent);
+        boolean releaseClones = PDFImagesConfig.isEnabled(userAgent.getRendererOptions(),
+                PDFImagesConfig.RELEASE_CLONES);
+        boolean reusePages = isReusingPagesPlacedAgain(userAgent);
+        List<Object> streams = new ArrayList<Object>(targetPages.size());
+        synchronized (srcDoc) {
+            for (int i = firstPage; i <= lastPage; i++) {
+                PDFPage targetPage = targetPages.get(i - firstPage);
+                prepareTargetPage(targetPage, pdfDoc);
+                PDPage srcPage = srcDoc.getPage(i);
+                int[] geometry = PageGeometryIndex.getGeometry(srcPage);
+                boolean swap = geometry[2] == 90 || geometry[2] == 270;
+                Rectangle destRect = new Rectangle(0, 0, swap ? geometry[1] : geometry[0],
+                        swap ? geometry[0] : geometry[1]);
+                PDFBoxAdapter adapter = new PDFBoxAdapter(targetPage, objectCachePerFile, usedFieldNames,
+                        pageNumbers, objectCache, eventBroadcaster);
+                adapter.shareImportState(importStates);
+                if (releaseClones) {
+                    adapter.releaseClonesOfEarlierPages();
+                }
+                if (reusePages) {
+                    adapter.reusePagesPlacedAgain();
+                }
+                streams.add(adapter.createStreamFromPDFBoxPage(srcDoc, srcPage, imagePath + "#page=" + (i + 1),
+                        new AffineTransform(), fontinfo, destRect, null));
+            }
+        }
+        return streams;
+    }
+
+    /**
+     * Adjusts the version of the target document and reports problems importing the source document.
+     * @return false if the source document can't be imported
+     */
+    private boolean checkSourceDocument(PDDocument srcDoc, PDFDocument pdfDoc, EventBroadcaster eventBroadcaster) {
         float pdfVersion = srcDoc.getDocument().getVersion();
         Version inputDocVersion = Version.getValueOf(String.valueOf(pdfVersion));
-        PDFDocument pdfDoc = targetPage.getDocument();
 
         if (pdfDoc.getPDFVersion().compareTo(inputDocVersion) < 0) {
             try {
@@ -79,7 +192,7 @@ public abstract class AbstractPDFBoxHandler {
         //Encryption test
         if (srcDoc.isEncrypted()) {
             getEventProducer(eventBroadcaster).encryptedPdf(this);
-            return null;
+            return false;
         }
 
         //Warn about potential problems with PDF/A and PDF/X
@@ -89,31 +202,25 @@ public abstract class AbstractPDFBoxHandler {
         if (pdfDoc.getProfile().isPDFXActive()) {
             getEventProducer(eventBroadcaster).pdfXActive(this);
         }
+        return true;
+    }
 
-        Map<Object, Object> objectCachePerFile = getObjectCache(getImagePath(originalImageUri), userAgent);
-
-        PDPage srcPage = srcDoc.getPage(selectedPage);
+    /**
+     * Tells whether pages placed more than once are shared as Form XObjects. Not for tagged PDF, as the marked
+     * content of a page can only be part of the structure tree once.
+     */
+    private boolean isReusingPagesPlacedAgain(FOUserAgent userAgent) {
+        return !userAgent.isAccessibilityEnabled()
+                && PDFImagesConfig.isEnabled(userAgent.getRendererOptions(), PDFImagesConfig.ADAPTIVE_FORM_XOBJECTS);
+    }
 
+    private void prepareTargetPage(PDFPage targetPage, PDFDocument pdfDoc) {
         if (targetPage.getPDFResources().getParentResources() == null) {
             PDFResources res = pdfDoc.getFactory().makeResources();
             res.setParentResources(pdfDoc.getResources());
             res.addContext(targetPage);
             targetPage.put("Resources", res);
         }
-
-        Map<Object, Object> objectCache = getObjectCache(getClass().getName(), userAgent);
-        PDFBoxAdapter adapter = new PDFBoxAdapter(targetPage, objectCachePerFile, usedFieldNames, pageNumbers,
-                objectCache, eventBroadcaster);
-        if (handler != null) {
-            adapter.setCurrentMCID(handler.getPageParentTree().length());
-        }
-        Object stream = adapter.createStreamFromPDFBoxPage(
-                srcDoc, srcPage, originalImageUri, pageAdjust, fontinfo, destRect, generatorAT);
-        if (userAgent.isAccessibilityEnabled() && curentSessionElem != null) {
-            TaggedPDFConductor conductor = new TaggedPDFConductor(curentSessionElem, handler, srcPage, adapter);
-            conductor.handleLogicalStructure(srcDoc);
-        }
-        return stream;
     }
 
     private Map<Object, Object> getObjectCache(String path, FOUserAgent userAgent) {
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+
+import org.apache.fop.pdf.PDFStream;
+
+/**
+ * Shares the appearance streams of imported annotations by content, so placing the same form page many times
+ * writes each distinct appearance XObject once. Streams are identified by their content digest, see
+ * {@link PDFBoxAdapterUtil#getContentDigest(COSStream)}. The streams are shared through the adapter's
+ * {@link ImportState}.
+ */
+final class AppearanceStreams {
+
+    private static final COSName[] APPEARANCES = {COSName.N, COSName.D, COSName.R};
+
+    private final PDFBoxAdapter adapter;
+    private final Map<String, PDFStream> shared;
+
+    AppearanceStreams(PDFBoxAdapter adapter) {
+        this.adapter = adapter;
+        shared = adapter.getImportState().appearanceStreams;
+    }
+
+    /**
+     * Makes appearance streams already imported with the same content available to the clone of an annotation.
+     * @param annot the source annotation
+     * @return the appearance streams of the annotation with their digests, to be passed to {@link #register}
+     * @throws IOException if a stream can't be read
+     */
+    Map<COSObject, String> share(COSDictionary annot) throws IOException {
+        Map<COSObject, String> digests = new LinkedHashMap<COSObject, String>();
+        for (COSObject stream : getAppearanceStreams(annot)) {
+            String digest = PDFBoxAdapterUtil.getContentDigest((COSStream) stream.getObject());
+            digests.put(stream, digest);
+            PDFStream clone;
+            synchronized (shared) {
+                clone = shared.get(digest);
+            }
+            if (clone != null && adapter.getCachedClone(stream) == null) {
+                adapter.reuseClone(stream, clone);
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * Records the clones of appearance streams once the annotation has been cloned.
+     * @param digests the streams and digests returned by {@link #share}
+     * @throws IOException if a stream can't be read
+     */
+    void register(Map<COSObject, String> digests) throws IOException {
+        for (Map.Entry<COSObject, String> entry : digests.entrySet()) {
+            Object clone = adapter.getCachedClone(entry.getKey());
+            if (clone instanceof PDFStream) {
+                synchronized (shared) {
+                    if (!shared.containsKey(entry.getValue())) {
+                        shared.put(entry.getValue(), (PDFStream) clone);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the appearance streams (normal, down and rollover, for every state) of an annotation.
+     */
+    static List<COSObject> getAppearanceStreams(COSDictionary annot) {
+        List<COSObject> streams = new ArrayList<COSObject>();
+        COSBase ap = annot.getDictionaryObject(COSName.AP);
+        if (ap instanceof COSDictionary) {
+            for (COSName name : APPEARANCES) {
+                addStreams(((COSDictionary) ap).getItem(name), streams);
+            }
+        }
+        return streams;
+    }
+
+    private static void addStreams(COSBase appearance, List<COSObject> streams) {
+        if (appearance instanceof COSObject && ((COSObject) appearance).getObject() instanceof COSStream) {
+            streams.add((COSObject) appearance);
+        } else {
+            COSBase states = appearance instanceof COSObject ? ((COSObject) appearance).getObject() : appearance;
+            if (states instanceof COSDictionary && !(states instanceof COSStream)) {
+                for (COSBase state : ((COSDictionary) states).getValues()) {
+                    if (state instanceof COSObject && ((COSObject) state).getObject() instanceof COSStream) {
+                        streams.add((COSObject) state);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -59,7 +59,7 @@ public class CloneAnnotations implements HandleAnnotations<COSObject> {
         }
         if (srcAcroForm != null) {
             COSArray srcFields = (COSArray) srcAcroForm.getCOSObject().getDictionaryObject(COSName.FIELDS);
-            if (srcFields != null && srcFields.toList().contains(fieldObject)) {
+            if (srcFields != null && pdfBoxAdapter.getSource().isListedField(srcFields, fieldObject)) {
                 fields.add(fieldObject);
             }
         } else {
@@ -82,7 +82,7 @@ public class CloneAnnotations implements HandleAnnotations<COSObject> {
             COSDictionary dictionary = (COSDictionary) ((COSObject) annot).getObject();
             COSBase parent = dictionary.getItem(COSName.PARENT);
             if (parent != null) {
-                clonedAnnot.put(COSName.PARENT.getName(), new PDFCloner(this.pdfBoxAdapter, true)
+                clonedAnnot.put(COSName.PARENT.getName(), this.pdfBoxAdapter.getCloner(true)
                         .cloneForNewDocument(parent, parent, exclude));
             }
         }
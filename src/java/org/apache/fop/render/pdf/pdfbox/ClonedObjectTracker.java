@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.fop.pdf.PDFObject;
+import org.apache.fop.pdf.PDFPage;
+import org.apache.fop.pdf.PDFReference;
+
+/**
+ * Tracks the objects cloned into the object caches while a page of the target document is done, and releases them
+ * from the caches once FOP has moved on to the next page:
+ * <ul>
+ * <li>streams which are never changed once cloned (images, fonts, ...) are replaced by a reference, so later pages
+ * still share them but the caches no longer keep them in memory once they have been written;</li>
+ * <li>values which aren't objects of their own (the rewritten page content, direct dictionaries) are dropped and
+ * cloned again if the same source page is imported again;</li>
+ * <li>all other objects, which may still be changed by later pages (fonts, annotations, form fields, patterns,
+ * structure elements), are kept.</li>
+ * </ul>
+ * There's one tracker per target document, kept in its {@link ImportState}.
+ */
+final class ClonedObjectTracker {
+
+    private WeakReference<PDFPage> currentPage;
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Releases the objects cloned for earlier pages if the page is a new one.
+     * @param page the target page objects are imported into
+     */
+    synchronized void startPage(PDFPage page) {
+        PDFPage current = currentPage != null ? currentPage.get() : null;
+        if (current != page) {
+            release();
+            currentPage = new WeakReference<PDFPage>(page);
+        }
+    }
+
+    /**
+     * Records an object cloned for the current page.
+     * @param clonedVersion the per file cache it's put into
+     * @param objectCache the cache shared by all files, may be null
+     * @param key the cache key
+     * @param replaceable true if the object isn't changed anymore, so it can be replaced by a reference
+     */
+    synchronized void cached(Map<Object, Object> clonedVersion, Map<Object, Object> objectCache, Object key,
+                             boolean replaceable) {
+        entries.add(new Entry(clonedVersion, objectCache, key, replaceable));
+    }
+
+    private void release() {
+        for (Entry entry : entries) {
+            Map<Object, Object> cache = entry.clonedVersion.get();
+            if (cache == null) {
+                continue;
+            }
+            Map<Object, Object> shared = entry.objectCache != null ? entry.objectCache.get() : null;
+            Object value = cache.get(entry.key);
+            if (value instanceof PDFObject && ((PDFObject) value).hasObjectNumber()) {
+                if (entry.replaceable) {
+                    PDFReference reference = ((PDFObject) value).makeReference();
+                    cache.put(entry.key, reference);
+                    if (shared != null && shared.get(entry.key) == value) {
+                        shared.put(entry.key, reference);
+                    }
+                }
+            } else if (value != null && !(value instanceof PDFReference)) {
+                cache.remove(entry.key);
+            }
+        }
+        entries.clear();
+    }
+
+    private static final class Entry {
+        private final WeakReference<Map<Object, Object>> clonedVersion;
+        private final WeakReference<Map<Object, Object>> objectCache;
+        private final Object key;
+        private final boolean replaceable;
+
+        private Entry(Map<Object, Object> clonedVersion, Map<Object, Object> objectCache, Object key,
+                      boolean replaceable) {
+            this.clonedVersion = new WeakReference<Map<Object, Object>>(clonedVersion);
+            this.objectCache = objectCache != null ? new WeakReference<Map<Object, Object>>(objectCache) : null;
+            this.key = key;
+            this.replaceable = replaceable;
+        }
+    }
+}
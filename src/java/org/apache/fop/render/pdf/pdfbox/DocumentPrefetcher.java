@@ -0,0 +1,255 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import org.apache.fop.render.pdf.pdfbox.Cache.ValueMaker;
+
+/**
+ * Parses source PDFs in the background while FOP does the layout, so the I/O of reading a document isn't done on
+ * the layout thread when its page is rendered. Documents are loaded on virtual threads where the JVM has them and
+ * on a small pool of daemon threads otherwise. The number of bytes of documents being loaded or loaded but not yet
+ * taken by their image is capped, documents that don't fit are loaded on demand as before. A prefetch whose image
+ * is dropped without being rendered or closed is cancelled once the image has been garbage collected.
+ */
+final class DocumentPrefetcher {
+
+    private static final Log LOG = LogFactory.getLog(DocumentPrefetcher.class);
+
+    /** Default cap on the megabytes of prefetched documents. */
+    static final int DEFAULT_MAX_MB = 256;
+
+    private static final int KB = 1024;
+
+    private final ExecutorService executor;
+    private final Semaphore kilobytes;
+    private final int maxKilobytes;
+    /** The prefetches not yet taken or cancelled, kept by the weak references to their images. */
+    private final Set<OwnerReference> pending =
+            Collections.newSetFromMap(new ConcurrentHashMap<OwnerReference, Boolean>());
+    private final ReferenceQueue<Object> droppedOwners = new ReferenceQueue<Object>();
+
+    DocumentPrefetcher(ExecutorService executor, long maxBytes) {
+        this.executor = executor;
+        this.maxKilobytes = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / KB));
+        this.kilobytes = new Semaphore(maxKilobytes);
+    }
+
+    /**
+     * Returns the prefetcher if prefetching is enabled with {@link PDFImagesConfig#PREFETCH}.
+     * @return the prefetcher or null
+     */
+    static DocumentPrefetcher get() {
+        if (!PDFImagesConfig.isEnabled(null, PDFImagesConfig.PREFETCH)) {
+            return null;
+        }
+        return Holder.INSTANCE;
+    }
+
+    private static DocumentPrefetcher create() {
+        long maxBytes = (long) PDFImagesConfig.getInt(null, PDFImagesConfig.PREFETCH_MAX_MB, DEFAULT_MAX_MB)
+                * KB * KB;
+        return new DocumentPrefetcher(createExecutor(), maxBytes);
+    }
+
+    private static ExecutorService createExecutor() {
+        try {
+            //Java 21+
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "fop-pdf-images-prefetch");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+
+    /**
+     * Starts loading a document unless the cap on prefetched bytes has been reached.
+     * @param maker loads the document
+     * @param bytes the size of the document's file
+     * @param owner the image the document is loaded for; the prefetch is cancelled if it's garbage collected
+     * @return the pending document or null if it isn't prefetched
+     */
+    Prefetch prefetch(final ValueMaker<PDDocument> maker, long bytes, Object owner) {
+        cancelDropped();
+        int permits = (int) Math.max(1, Math.min(maxKilobytes, (bytes + KB - 1) / KB));
+        if (!kilobytes.tryAcquire(permits)) {
+            return null;
+        }
+        final Prefetch prefetch = new Prefetch(permits);
+        try {
+            prefetch.future = executor.submit(new Callable<PDDocument>() {
+                public PDDocument call() throws Exception {
+                    return prefetch.loaded(maker.make());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            kilobytes.release(permits);
+            return null;
+        }
+        prefetch.owner = new OwnerReference(owner, prefetch, droppedOwners);
+        pending.add(prefetch.owner);
+        return prefetch;
+    }
+
+    /**
+     * Cancels the prefetches whose images have been garbage collected.
+     */
+    private void cancelDropped() {
+        Reference<?> reference;
+        while ((reference = droppedOwners.poll()) != null) {
+            ((OwnerReference) reference).prefetch.cancel();
+        }
+    }
+
+    int availableKilobytes() {
+        cancelDropped();
+        return kilobytes.availablePermits();
+    }
+
+    /**
+     * A document being loaded in the background.
+     */
+    final class Prefetch {
+        private volatile Future<PDDocument> future;
+        private volatile OwnerReference owner;
+        private final int permits;
+        private boolean released;
+        private boolean cancelled;
+        /** The loaded document until it's taken, so a cancel after loading can close it. */
+        private PDDocument document;
+
+        private Prefetch(int permits) {
+            this.permits = permits;
+        }
+
+        /**
+         * Called by the loading task with the document; closes it if the prefetch was cancelled meanwhile.
+         */
+        private PDDocument loaded(PDDocument doc) throws IOException {
+            synchronized (this) {
+                if (!cancelled) {
+                    document = doc;
+                    return doc;
+                }
+            }
+            doc.close();
+            return null;
+        }
+
+        /**
+         * Waits for the document.
+         * @return the document
+         * @throws Exception if the document couldn't be loaded
+         */
+        PDDocument join() throws Exception {
+            try {
+                PDDocument doc = future.get();
+                synchronized (this) {
+                    document = null;
+                }
+                return doc;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Drops the document, closing it if it has already been loaded. A document still being loaded is closed by
+         * the loading task once it's done.
+         */
+        void cancel() {
+            PDDocument doc;
+            synchronized (this) {
+                cancelled = true;
+                doc = document;
+                document = null;
+            }
+            future.cancel(false);
+            if (doc != null) {
+                try {
+                    doc.close();
+                } catch (IOException e) {
+                    LOG.debug("Error closing prefetched document: " + e.getMessage());
+                }
+            }
+            release();
+        }
+
+        private synchronized void release() {
+            if (!released) {
+                released = true;
+                kilobytes.release(permits);
+                pending.remove(owner);
+            }
+        }
+    }
+
+    /**
+     * A weak reference to the image a document is prefetched for.
+     */
+    private static final class OwnerReference extends WeakReference<Object> {
+        private final Prefetch prefetch;
+
+        private OwnerReference(Object owner, Prefetch prefetch, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            this.prefetch = prefetch;
+        }
+    }
+
+    private static final class Holder {
+        private static final DocumentPrefetcher INSTANCE = create();
+
+        private Holder() { }
+    }
+}
@@ -18,14 +18,9 @@
 /* $Id$ */
 package org.apache.fop.render.pdf.pdfbox;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Map;
 
-import org.apache.pdfbox.multipdf.Splitter;
-import org.apache.pdfbox.pdmodel.PDDocument;
-
 import org.apache.xmlgraphics.image.loader.Image;
 import org.apache.xmlgraphics.image.loader.ImageFlavor;
 import org.apache.xmlgraphics.image.loader.MimeEnabledImageFlavor;
@@ -40,16 +35,9 @@ public class ImageConverterPDF2AFP extends AbstractImageConverter {
         }
         ImagePDF imgPDF = (ImagePDF)src;
         int selectedPage = ImageUtil.needPageIndexFromURI(src.getInfo().getOriginalURI());
-        PDDocument pdDocument = imgPDF.getPDDocument();
-        Splitter splitter = new Splitter();
-        splitter.setStartPage(selectedPage + 1);
-        splitter.setEndPage(selectedPage + 1);
-        pdDocument = splitter.split(pdDocument).get(0);
-        ByteArrayOutputStream pdf = new ByteArrayOutputStream();
-        pdDocument.save(pdf);
-        pdDocument.close();
         MimeEnabledImageFlavor imageFlavor = new MimeEnabledImageFlavor(src.getFlavor(), ImagePDF.MIME_PDF);
-        return new ImageRawStream(src.getInfo(), imageFlavor, new ByteArrayInputStream(pdf.toByteArray()));
+        byte[] pdf = PageExtractor.getPage(imgPDF.getPDDocument(), selectedPage);
+        return new ImageRawStream(src.getInfo(), imageFlavor, new ImageRawStream.ByteArrayStreamFactory(pdf));
     }
 
     public ImageFlavor getSourceFlavor() {
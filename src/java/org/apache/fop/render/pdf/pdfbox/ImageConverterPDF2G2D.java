@@ -21,7 +21,6 @@ package org.apache.fop.render.pdf.pdfbox;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
@@ -32,6 +31,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -75,6 +75,7 @@ import org.apache.xmlgraphics.java2d.Graphics2DImagePainter;
 import org.apache.xmlgraphics.java2d.ps.PSGraphics2D;
 import org.apache.xmlgraphics.ps.PSGenerator;
 
+import org.apache.fop.afp.AFPGraphics2D;
 import org.apache.fop.fonts.CustomFont;
 import org.apache.fop.fonts.LazyFont;
 import org.apache.fop.fonts.MultiByteFont;
@@ -90,15 +91,10 @@ public class ImageConverterPDF2G2D extends AbstractImageConverter {
     /** {@inheritDoc} */
     public Image convert(Image src, Map hints) throws ImageException,
             IOException {
+        RenderingProfile profile = RenderingProfile.get(hints);
         float dpi = 72;
         if (hints != null) {
-            dpi = (Float)hints.get("SOURCE_RESOLUTION");
-            if (dpi == 72) {
-                //note we are doing twice as many pixels because
-                //the default size is not really good resolution,
-                //so create an image that is twice the size
-                dpi *= 2;
-            }
+            dpi = profile.getDPI((Float)hints.get("SOURCE_RESOLUTION"));
         }
         checkSourceFlavor(src);
         assert src instanceof ImagePDF;
@@ -109,8 +105,8 @@ public class ImageConverterPDF2G2D extends AbstractImageConverter {
 
         PDDocument pddoc = imgPDF.getPDDocument();
 
-        Graphics2DImagePainter painter =
-                new Graphics2DImagePainterPDF(pddoc, dpi, selectedPage, imgPDF.getInfo().getOriginalURI());
+        Graphics2DImagePainter painter = new Graphics2DImagePainterPDF(pddoc, dpi, selectedPage,
+                imgPDF.getInfo().getOriginalURI(), profile, hints);
 
         ImageGraphics2D g2dImage = new ImageGraphics2D(src.getInfo(), painter);
         return g2dImage;
@@ -140,18 +136,28 @@ public class ImageConverterPDF2G2D extends AbstractImageConverter {
         private int selectedPage;
         private FopFontProvider fopFontProvider = new FopFontProvider();
         private String uri;
+        private final RenderingProfile profile;
+        private final Map<?, ?> hints;
 
-        public Graphics2DImagePainterPDF(PDDocument pddoc, float dpi, int selectedPage, String uri) {
+        public Graphics2DImagePainterPDF(PDDocument pddoc, float dpi, int selectedPage, String uri,
+                                         RenderingProfile profile, Map<?, ?> hints) {
             this.dpi = dpi;
             pdDocument = pddoc;
             this.selectedPage = selectedPage;
-            page = pdDocument.getPage(selectedPage);
+            synchronized (pdDocument) {
+                page = pdDocument.getPage(selectedPage);
+            }
             this.uri = uri;
+            this.profile = profile;
+            this.hints = hints;
         }
 
         /** {@inheritDoc} */
         public Dimension getImageSize() {
-            PDRectangle mediaBox = page.getMediaBox();
+            PDRectangle mediaBox;
+            synchronized (pdDocument) {
+                mediaBox = page.getMediaBox();
+            }
             int wmpt = (int)Math.ceil(mediaBox.getWidth() * 1000);
             int hmpt = (int)Math.ceil(mediaBox.getHeight() * 1000);
             return new Dimension(wmpt, hmpt);
@@ -159,51 +165,58 @@ public class ImageConverterPDF2G2D extends AbstractImageConverter {
 
         /** {@inheritDoc} */
         public void paint(Graphics2D g2d, Rectangle2D area) {
-            fopFontProvider.start();
+            FopFontProvider previous = fopFontProvider.start();
             try {
-                PDRectangle mediaBox = page.getCropBox();
-                AffineTransform at = new AffineTransform();
-                int rotation = page.getRotation();
-                if (rotation == 90 || rotation == 270) {
-                    at.scale(area.getWidth() / area.getHeight(), area.getHeight() / area.getWidth());
-                }
-                PageUtil pageUtil = new PageUtil();
-                if (g2d instanceof PSGraphics2D && pageUtil.pageHasTransparency(page.getResources(), page)) {
-                    drawPageAsImage(at, g2d);
-                } else {
-                    at.translate(area.getX(), area.getY());
-                    at.scale(area.getWidth() / mediaBox.getWidth(),
-                            area.getHeight() / mediaBox.getHeight());
-                    scaleToDPI(g2d, at, pageUtil);
-                    g2d.transform(at);
-                    normaliseScale(g2d);
-                    PDFRenderer pdfRenderer = new PDFRenderer(pdDocument);
-                    pdfRenderer.setRenderingHints(getDefaultRenderingHints());
-                    pdfRenderer.renderPageToGraphics(selectedPage, g2d);
+                //the document may be shared by renderings in other threads, PDFBox doesn't support that
+                synchronized (pdDocument) {
+                    PDRectangle mediaBox = page.getCropBox();
+                    AffineTransform at = new AffineTransform();
+                    int rotation = page.getRotation();
+                    if (rotation == 90 || rotation == 270) {
+                        at.scale(area.getWidth() / area.getHeight(), area.getHeight() / area.getWidth());
+                    }
+                    float resolution = RenderingProfile.capDPI(dpi, hints, getFormat(g2d));
+                    PageUtil pageUtil = new PageUtil();
+                    if (g2d instanceof PSGraphics2D && pageUtil.pageHasTransparency(page.getResources(), page)) {
+                        drawPageAsImage(at, g2d, resolution);
+                    } else {
+                        at.translate(area.getX(), area.getY());
+                        at.scale(area.getWidth() / mediaBox.getWidth(),
+                                area.getHeight() / mediaBox.getHeight());
+                        scaleToDPI(g2d, at, pageUtil, resolution);
+                        g2d.transform(at);
+                        normaliseScale(g2d);
+                        PDFRenderer pdfRenderer = new PDFRenderer(pdDocument);
+                        pdfRenderer.setRenderingHints(profile.getRenderingHints());
+                        pdfRenderer.renderPageToGraphics(selectedPage, g2d);
+                    }
                 }
             } catch (UnsupportedOperationException e) {
                 throw e;
             } catch (Throwable t) {
                 throw new RuntimeException("Error while painting PDF page: " + uri + " " + t.getMessage(), t);
             } finally {
-                fopFontProvider.close();
+                fopFontProvider.close(previous);
             }
         }
 
-        private RenderingHints getDefaultRenderingHints() {
-            RenderingHints r = new RenderingHints(null);
-            r.put(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            r.put(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-            r.put(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            return r;
+        private String getFormat(Graphics2D g2d) {
+            if (g2d instanceof PSGraphics2D) {
+                return "ps";
+            }
+            if (g2d instanceof AFPGraphics2D) {
+                return "afp";
+            }
+            return "java2d";
         }
 
-        private void scaleToDPI(Graphics2D g2d, AffineTransform at, PageUtil pageUtil) throws IOException {
+        private void scaleToDPI(Graphics2D g2d, AffineTransform at, PageUtil pageUtil, float resolution)
+            throws IOException {
             if (g2d instanceof PSGraphics2D && pageUtil.hasTransparencyGroup) {
                 PSGraphics2D psGraphics2D = (PSGraphics2D) g2d;
-                double scaleDown = 72 / dpi;
+                double scaleDown = 72 / resolution;
                 psGraphics2D.getPSGenerator().concatMatrix(AffineTransform.getScaleInstance(scaleDown, scaleDown));
-                double scaleUp = dpi / 72d;
+                double scaleUp = resolution / 72d;
                 at.scale(scaleUp, scaleUp);
             }
         }
@@ -219,10 +232,13 @@ public class ImageConverterPDF2G2D extends AbstractImageConverter {
             }
         }
 
-        private void drawPageAsImage(AffineTransform at, Graphics2D g2d) throws IOException {
+        private void drawPageAsImage(AffineTransform at, Graphics2D g2d, float resolution) throws IOException {
             PDFRenderer renderer = new PDFRenderer(pdDocument);
-            BufferedImage bi = renderer.renderImageWithDPI(selectedPage, dpi);
-            at.scale(72 / dpi, 72 / dpi);
+            if (profile != RenderingProfile.NORMAL) {
+                renderer.setRenderingHints(profile.getRenderingHints());
+            }
+            BufferedImage bi = renderer.renderImageWithDPI(selectedPage, resolution);
+            at.scale(72 / resolution, 72 / resolution);
             g2d.drawImage(bi, at, null);
         }
 
@@ -292,7 +308,11 @@ public class ImageConverterPDF2G2D extends AbstractImageConverter {
         }
 
         public void addFallbackFont(String s, Object font) {
-            fopFontProvider.fonts.put(s, font);
+            if (font != null) {
+                fopFontProvider.fonts.put(s, font);
+            } else {
+                fopFontProvider.fonts.remove(s);
+            }
         }
     }
 
@@ -339,19 +359,27 @@ public class ImageConverterPDF2G2D extends AbstractImageConverter {
     }
 
     static class FopFontProvider {
-        private static FopFontMapper fopFontMapper = new FopFontMapper();
-        static {
-            FontMappers.set(fopFontMapper);
-        }
-        private Map<String, Object> fonts = new HashMap<String, Object>();
-        private Map<String, TrueTypeFont> ttFonts = new HashMap<String, TrueTypeFont>();
-
-        void start() {
-            fopFontMapper.fopFontProvider.set(this);
+        private final Map<String, Object> fonts = new ConcurrentHashMap<String, Object>();
+        private final Map<String, TrueTypeFont> ttFonts = new ConcurrentHashMap<String, TrueTypeFont>();
+
+        /**
+         * Makes the fonts of this provider available to PDFBox in the current thread.
+         * @return the provider active before, to be passed to {@link #close(FopFontProvider)}
+         */
+        FopFontProvider start() {
+            FopFontMapper mapper = FopFontMapper.getInstance();
+            FopFontProvider previous = mapper.fopFontProvider.get();
+            mapper.fopFontProvider.set(this);
+            return previous;
         }
 
-        void close() {
-            fopFontMapper.fopFontProvider.remove();
+        void close(FopFontProvider previous) {
+            FopFontMapper mapper = FopFontMapper.getInstance();
+            if (previous != null) {
+                mapper.fopFontProvider.set(previous);
+            } else {
+                mapper.fopFontProvider.remove();
+            }
         }
 
         private CustomFont getFont(String name) throws IOException {
@@ -368,29 +396,56 @@ public class ImageConverterPDF2G2D extends AbstractImageConverter {
         }
 
         public TrueTypeFont getTrueTypeFont(String postScriptName) {
-            if (!ttFonts.containsKey(postScriptName)) {
+            TrueTypeFont ttf = ttFonts.get(postScriptName);
+            if (ttf == null) {
                 try {
                     CustomFont font = getFont(postScriptName);
                     if (font instanceof MultiByteFont && !((MultiByteFont)font).isOTFFile()) {
                         TTFParser ttfParser = new TTFParser(false);
-                        TrueTypeFont ttf = ttfParser.parse(new RandomAccessReadBuffer(font.getInputStream()));
-                        ttFonts.put(postScriptName, ttf);
+                        ttf = ttfParser.parse(new RandomAccessReadBuffer(font.getInputStream()));
+                        TrueTypeFont existing = ttFonts.putIfAbsent(postScriptName, ttf);
+                        if (existing != null) {
+                            ttf = existing;
+                        }
                     }
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
             }
-            return ttFonts.get(postScriptName);
+            return ttf;
         }
     }
 
 
-    static class FopFontMapper implements FontMapper {
-        private FontMapper defaultFontMapper;
-        private ThreadLocal<FopFontProvider> fopFontProvider = new ThreadLocal<FopFontProvider>();
+    /**
+     * Font mapper installed into PDFBox's process-wide {@link FontMappers} the first time a page is painted. Fonts are
+     * looked up with the {@link FopFontProvider} active in the painting thread, other lookups go to the mapper that
+     * was installed before.
+     */
+    static final class FopFontMapper implements FontMapper {
+        private final FontMapper defaultFontMapper;
+        private final ThreadLocal<FopFontProvider> fopFontProvider = new ThreadLocal<FopFontProvider>();
+
+        private FopFontMapper(FontMapper defaultFontMapper) {
+            this.defaultFontMapper = defaultFontMapper;
+        }
+
+        static FopFontMapper getInstance() {
+            return Holder.INSTANCE;
+        }
+
+        private static FopFontMapper install() {
+            synchronized (FontMappers.class) {
+                FopFontMapper mapper = new FopFontMapper(FontMappers.instance());
+                FontMappers.set(mapper);
+                return mapper;
+            }
+        }
+
+        private static final class Holder {
+            private static final FopFontMapper INSTANCE = install();
 
-        FopFontMapper() {
-            defaultFontMapper = FontMappers.instance();
+            private Holder() { }
         }
 
         private TrueTypeFont getTrueTypeFont(String baseFont) {
@@ -27,6 +27,8 @@ import org.apache.xmlgraphics.image.loader.ImageFlavor;
 import org.apache.xmlgraphics.image.loader.ImageInfo;
 import org.apache.xmlgraphics.image.loader.impl.AbstractImage;
 
+import org.apache.fop.render.pdf.pdfbox.Cache.ValueMaker;
+
 /**
  * Represents a PDF document as an image.
  */
@@ -38,7 +40,9 @@ public class ImagePDF extends AbstractImage {
     /** ImageFlavor for PDF */
     public static final ImageFlavor PDFBOX_IMAGE = new ImageFlavor("PDFBox");
 
-    private final PDDocument pddoc;
+    private PDDocument pddoc;
+    private final ValueMaker<PDDocument> documentMaker;
+    private DocumentPrefetcher.Prefetch prefetch;
 
     /**
      * Create an PDF image with the image information.
@@ -47,18 +51,72 @@ public class ImagePDF extends AbstractImage {
      * @param doc the PDF document
      */
     public ImagePDF(ImageInfo info, PDDocument doc) {
+        this(info, doc, null);
+    }
+
+    private ImagePDF(ImageInfo info, PDDocument doc, ValueMaker<PDDocument> documentMaker) {
         super(info);
         this.pddoc = doc;
+        this.documentMaker = documentMaker;
+    }
+
+    /**
+     * Creates a PDF image whose document is only parsed when it's first asked for, or in the background if
+     * prefetching is enabled.
+     *
+     * @param info the information containing the data and bounding box
+     * @param documentMaker parses the PDF document
+     * @param size the size of the PDF in bytes
+     * @return the image
+     */
+    static ImagePDF createDeferred(ImageInfo info, ValueMaker<PDDocument> documentMaker, long size) {
+        ImagePDF image = new ImagePDF(info, null, documentMaker);
+        DocumentPrefetcher prefetcher = DocumentPrefetcher.get();
+        if (prefetcher != null) {
+            image.prefetch = prefetcher.prefetch(documentMaker, size, image);
+        }
+        return image;
     }
 
     /**
      * Returns the root PDDocument instance representing the PDF image.
      * @return the root PDDocument
      */
-    public PDDocument getPDDocument() {
+    public synchronized PDDocument getPDDocument() {
+        if (pddoc == null && documentMaker != null) {
+            try {
+                if (prefetch != null) {
+                    DocumentPrefetcher.Prefetch pending = prefetch;
+                    prefetch = null;
+                    pddoc = pending.join();
+                } else {
+                    pddoc = documentMaker.make();
+                }
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Error loading PDF: " + getInfo().getOriginalURI(), e);
+            }
+        }
         return this.pddoc;
     }
 
+    /**
+     * Tells whether the document of this image has been parsed.
+     * @return true if the document is in memory
+     */
+    synchronized boolean isLoaded() {
+        return pddoc != null;
+    }
+
+    /**
+     * Returns what parses the document of an image whose parsing is deferred.
+     * @return the document maker, null if the document was parsed when the image was created
+     */
+    ValueMaker<PDDocument> getDocumentMaker() {
+        return documentMaker;
+    }
+
     /** {@inheritDoc} */
     public ImageFlavor getFlavor() {
         return PDFBOX_IMAGE;
@@ -69,9 +127,16 @@ public class ImagePDF extends AbstractImage {
         return false;
     }
 
-    public void close() {
+    public synchronized void close() {
+        if (prefetch != null) {
+            prefetch.cancel();
+            prefetch = null;
+        }
+        if (pddoc == null) {
+            return;
+        }
         try {
-            pddoc.close();
+            SourcePDFStream.close(pddoc);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
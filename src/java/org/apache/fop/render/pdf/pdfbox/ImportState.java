@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSObject;
+
+import org.apache.fop.pdf.PDFArray;
+import org.apache.fop.pdf.PDFDictionary;
+import org.apache.fop.pdf.PDFDocument;
+import org.apache.fop.pdf.PDFStream;
+
+/**
+ * State of the imports into one target document that is shared by the adapters of a render, e.g. indexes of the
+ * merged AcroForm fields. It's kept in a map owned by the caller for the duration of the render (the user agent's
+ * PDF object cache), never in static fields: the state refers to objects of the target document, so it would
+ * keep the document alive.
+ */
+final class ImportState {
+
+    /** The entries of the target /Fields arrays, by array. */
+    final Map<PDFArray, PDFBoxAdapter.FieldSet> fieldSets = new IdentityHashMap<PDFArray, PDFBoxAdapter.FieldSet>();
+    /** The kids of merged fields by partial name, by /Kids array. */
+    final Map<PDFArray, MergeAnnotations.KidIndex> kidIndexes =
+            new IdentityHashMap<PDFArray, MergeAnnotations.KidIndex>();
+    /** The streams cloned into the target document, by content digest. */
+    final StreamRegistry streamRegistry;
+    /** The imported appearance streams of annotations, by content digest. */
+    final Map<String, PDFStream> appearanceStreams = new HashMap<String, PDFStream>();
+    /** The source pages placed into the target document, for reusing pages placed more than once. */
+    final PageForms pageForms = new PageForms();
+    /** The builders of the merged name trees, by root. */
+    final Map<PDFDictionary, NameTreeBuilder> nameTrees = new IdentityHashMap<PDFDictionary, NameTreeBuilder>();
+    /** The clones of annotations placed on a target page, with the entries they had before they were placed. */
+    final Map<PDFDictionary, PDFDictionary> placedAnnotations = new IdentityHashMap<PDFDictionary, PDFDictionary>();
+    /** The appearance streams of annotations on rotated pages, by the clone that keeps the source /Matrix. */
+    final Map<PDFStream, PDFStream> identityMatrixAppearances = new IdentityHashMap<PDFStream, PDFStream>();
+    /** The objects cloned for the current target page, released once the next page is started. */
+    final ClonedObjectTracker tracker = new ClonedObjectTracker();
+    /** The state of the source files imported, by URI. */
+    private final Map<String, Source> sources = new HashMap<String, Source>();
+
+    /**
+     * @param shared true if the state is shared by all the adapters importing into the target document
+     */
+    ImportState(boolean shared) {
+        streamRegistry = new StreamRegistry(shared);
+    }
+
+    /**
+     * Returns the state kept for a source file. It's keyed by URI rather than by the parsed document, so it's kept
+     * when the file is parsed again, e.g. by a deferred image.
+     * @param uri the URI of the source file, without fragment
+     * @return the state
+     */
+    Source getSource(String uri) {
+        synchronized (sources) {
+            Source source = sources.get(uri);
+            if (source == null) {
+                source = new Source();
+                sources.put(uri, source);
+            }
+            return source;
+        }
+    }
+
+    /**
+     * Returns the state of the imports into a target document.
+     * @param renderCache a map kept by the caller for the duration of the render
+     * @param pdfDoc the target document
+     * @return the state
+     */
+    static ImportState get(Map<Object, Object> renderCache, PDFDocument pdfDoc) {
+        synchronized (renderCache) {
+            ImportState state = (ImportState) renderCache.get(pdfDoc);
+            if (state == null) {
+                state = new ImportState(true);
+                renderCache.put(pdfDoc, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * State of the imports of one source file. Parsed source objects are referred to by object number, so no parsed
+     * document is kept alive.
+     */
+    static final class Source {
+        private Set<Object> fields;
+        private boolean catalogMerged;
+        private final Set<Map<Object, Object>> pageCaches =
+                Collections.newSetFromMap(new IdentityHashMap<Map<Object, Object>, Boolean>());
+
+        /**
+         * Records that the catalog entries of the source file are merged into the target document.
+         * @return false if they were merged before
+         */
+        synchronized boolean markCatalogMerged() {
+            boolean merged = catalogMerged;
+            catalogMerged = true;
+            return !merged;
+        }
+
+        /**
+         * Records that the pages of the source file are registered with an object cache of the file.
+         * @param cache the object cache
+         * @return false if they were registered with it before
+         */
+        synchronized boolean markPagesRegistered(Map<Object, Object> cache) {
+            return pageCaches.add(cache);
+        }
+
+        /**
+         * Checks whether a field is an entry of the source /Fields array. The entries are indexed on the first
+         * call; the index is dropped with the import state at the end of the render.
+         * @param srcFields the /Fields array of the source AcroForm
+         * @param field the root field
+         * @return true if the field is listed in /Fields
+         */
+        synchronized boolean isListedField(COSArray srcFields, COSObject field) {
+            if (fields == null) {
+                fields = new HashSet<Object>();
+                for (COSBase entry : srcFields) {
+                    if (entry instanceof COSObject) {
+                        fields.add(getObjectKey((COSObject) entry));
+                    }
+                }
+            }
+            return fields.contains(getObjectKey(field));
+        }
+
+        /**
+         * Returns the object number of an object, or the object itself if it has none, e.g. if it was created in
+         * memory rather than parsed.
+         */
+        private static Object getObjectKey(COSObject obj) {
+            if (obj.getKey() == null) {
+                return obj;
+            }
+            return obj.getObjectNumber() + " " + obj.getGenerationNumber();
+        }
+    }
+}
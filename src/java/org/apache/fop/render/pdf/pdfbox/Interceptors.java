@@ -21,23 +21,63 @@ package org.apache.fop.render.pdf.pdfbox;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.apache.pdfbox.pdmodel.PDDocument;
 
+import org.apache.xmlgraphics.image.loader.ImageContext;
+
 /**
  * Handles interceptors (hooks) that can operate on PDF documents.
+ * <p>
+ * Interceptors can be set process-wide through {@link #getInstance()} or for the documents loaded through one image
+ * context through {@link #getInstance(ImageContext)}. FOP uses one image context per {@code FopFactory}
+ * ({@code userAgent.getImageSessionContext().getParentContext()}), so services running user agents of several
+ * factories in parallel can give each of them its own interceptor. A scoped interceptor takes precedence over the
+ * process-wide one. Interceptors may be called from several threads at the same time.
  */
 public class Interceptors {
 
-    private static Interceptors instance;
+    private static final Map<ImageContext, Interceptors> SCOPED = new WeakHashMap<ImageContext, Interceptors>();
+
+    private final Interceptors parent;
+
+    private volatile OnLoadInterceptor onLoad;
+
+    public Interceptors() {
+        this(null);
+    }
 
-    private OnLoadInterceptor onLoad = null;
+    private Interceptors(Interceptors parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Returns the process-wide interceptors.
+     * @return the interceptors
+     */
+    public static Interceptors getInstance() {
+        return Holder.INSTANCE;
+    }
 
-    public static synchronized Interceptors getInstance() {
-        if (instance == null) {
-            instance = new Interceptors();
+    /**
+     * Returns the interceptors used for documents loaded through the given image context.
+     * @param context the image context, if null the process-wide interceptors are returned
+     * @return the interceptors
+     */
+    public static Interceptors getInstance(ImageContext context) {
+        if (context == null) {
+            return getInstance();
+        }
+        synchronized (SCOPED) {
+            Interceptors interceptors = SCOPED.get(context);
+            if (interceptors == null) {
+                interceptors = new Interceptors(getInstance());
+                SCOPED.put(context, interceptors);
+            }
+            return interceptors;
         }
-        return instance;
     }
 
     /**
@@ -50,8 +90,9 @@ public class Interceptors {
      */
     public PDDocument interceptOnLoad(PDDocument doc, URI uri) throws IOException {
         PDDocument result = null;
-        if (onLoad != null) {
-            result = onLoad.intercept(doc, uri);
+        OnLoadInterceptor interceptor = getOnLoad();
+        if (interceptor != null) {
+            result = interceptor.intercept(doc, uri);
         }
         if (result == null) {
             result = doc;
@@ -59,6 +100,14 @@ public class Interceptors {
         return result;
     }
 
+    private OnLoadInterceptor getOnLoad() {
+        OnLoadInterceptor interceptor = onLoad;
+        if (interceptor == null && parent != null) {
+            interceptor = parent.onLoad;
+        }
+        return interceptor;
+    }
+
     /**
      * Set the on-load interceptor.
      * @param interceptor the interceptor instance
@@ -67,4 +116,9 @@ public class Interceptors {
         this.onLoad = interceptor;
     }
 
+    private static final class Holder {
+        private static final Interceptors INSTANCE = new Interceptors();
+
+        private Holder() { }
+    }
 }
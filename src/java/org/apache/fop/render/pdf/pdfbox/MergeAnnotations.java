@@ -19,10 +19,12 @@
 package org.apache.fop.render.pdf.pdfbox;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -56,11 +58,11 @@ public class MergeAnnotations implements HandleAnnotations<Object> {
     public void cloneAnnotParent(COSBase annot, PDFDictionary clonedAnnot, Collection<COSName> exclude)
         throws IOException {
         if (clonedAnnot.containsKey("T")) {
-            List<String> nameList = new ArrayList<>();
+            Deque<String> nameList = new LinkedList<>();
             addToTree(clonedAnnot, nameList);
-            PDFDictionary node = (PDFDictionary) fields.get(nameList.remove(0));
+            PDFDictionary node = (PDFDictionary) fields.get(nameList.removeFirst());
             while (!nameList.isEmpty()) {
-                String name = nameList.remove(0);
+                String name = nameList.removeFirst();
                 PDFDictionary nextNode = findKid(name, node);
                 if (nextNode == null) {
                     if (nameList.isEmpty()) {
@@ -115,18 +117,20 @@ public class MergeAnnotations implements HandleAnnotations<Object> {
 
     private PDFDictionary findKid(String name, PDFDictionary node) throws IOException {
         PDFArray kids = (PDFArray) node.get("Kids");
-        for (int i = 0; i < kids.length(); i++) {
-            PDFDictionary kid = (PDFDictionary) kids.get(i);
-            if (name.equals(getT(kid))) {
-                return kid;
+        ImportState importState = pdfBoxAdapter.getImportState();
+        synchronized (importState) {
+            KidIndex index = importState.kidIndexes.get(kids);
+            if (index == null) {
+                index = new KidIndex();
+                importState.kidIndexes.put(kids, index);
             }
+            return index.get(name, kids);
         }
-        return null;
     }
 
-    private void addToTree(PDFDictionary clonedAnnot, List<String> nameList) throws IOException {
+    private void addToTree(PDFDictionary clonedAnnot, Deque<String> nameList) throws IOException {
         String tStr = getT(clonedAnnot);
-        nameList.add(0, tStr);
+        nameList.addFirst(tStr);
         Object parent = clonedAnnot.get(COSName.PARENT.getName());
         if (parent instanceof PDFDictionary) {
             addToTree((PDFDictionary) parent, nameList);
@@ -135,11 +139,53 @@ public class MergeAnnotations implements HandleAnnotations<Object> {
         }
     }
 
-    private String getT(PDFDictionary clonedAnnot) throws IOException {
+    private static String getT(PDFDictionary clonedAnnot) throws IOException {
         Object tStr = clonedAnnot.get("T");
         if (tStr instanceof byte[]) {
             tStr = new String((byte[]) tStr, PDFDocument.ENCODING);
         }
         return (String) tStr;
     }
+
+    /**
+     * Kids of a merged field by partial name. Kids are only ever appended, so new ones are indexed on lookup.
+     * A kid can lose its name when {@link #insert} moves it under a new parent; the name is then indexed again.
+     */
+    static final class KidIndex {
+        private final Map<String, PDFDictionary> byName = new HashMap<String, PDFDictionary>();
+        private int indexed;
+
+        PDFDictionary get(String name, PDFArray kids) throws IOException {
+            for (; indexed < kids.length(); indexed++) {
+                Object kid = kids.get(indexed);
+                if (kid instanceof PDFDictionary) {
+                    String t = getT((PDFDictionary) kid);
+                    if (t != null && !isNamed(byName.get(t), t)) {
+                        byName.put(t, (PDFDictionary) kid);
+                    }
+                }
+            }
+            PDFDictionary kid = byName.get(name);
+            if (kid != null && !isNamed(kid, name)) {
+                kid = reindex(name, kids);
+            }
+            return kid;
+        }
+
+        private PDFDictionary reindex(String name, PDFArray kids) throws IOException {
+            byName.remove(name);
+            for (int i = 0; i < kids.length(); i++) {
+                Object kid = kids.get(i);
+                if (kid instanceof PDFDictionary && isNamed((PDFDictionary) kid, name)) {
+                    byName.put(name, (PDFDictionary) kid);
+                    return (PDFDictionary) kid;
+                }
+            }
+            return null;
+        }
+
+        private static boolean isNamed(PDFDictionary kid, String name) throws IOException {
+            return kid != null && name.equals(getT(kid));
+        }
+    }
 }
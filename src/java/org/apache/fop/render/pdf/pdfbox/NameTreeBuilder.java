@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.fop.pdf.PDFArray;
+import org.apache.fop.pdf.PDFDictionary;
+import org.apache.fop.pdf.PDFDocument;
+import org.apache.fop.pdf.PDFReference;
+
+/**
+ * Merges name trees (e.g. /Dests or /EmbeddedFiles in the catalog's /Names) into a balanced tree of /Kids nodes
+ * with /Limits. The sorted leaves are kept with the merged tree so that merging the tree of another document only
+ * inserts that document's entries, at O(log n) each, and only rewrites the leaves they went into. The intermediate
+ * nodes, one per 64 leaves, are rewritten on each merge.
+ */
+final class NameTreeBuilder {
+
+    /** Maximum number of entries in a leaf and of kids in an intermediate node. */
+    static final int MAX_ENTRIES = 64;
+
+    private static final String NAMES = "Names";
+    private static final String KIDS = "Kids";
+    private static final String LIMITS = "Limits";
+
+    /** Leaves in key order; they split when they get more than {@link #MAX_ENTRIES} entries. */
+    private final List<Leaf> leaves = new ArrayList<Leaf>();
+    /** Intermediate nodes written by an earlier build, reused so they don't end up in the output unreferenced. */
+    private final List<PDFDictionary> nodes = new ArrayList<PDFDictionary>();
+
+    private NameTreeBuilder() {
+        leaves.add(new Leaf());
+    }
+
+    static boolean isNameTree(PDFDictionary dict) {
+        return dict.get(NAMES) instanceof PDFArray || dict.get(KIDS) instanceof PDFArray;
+    }
+
+    /**
+     * Merges the entries of an existing name tree into a newly cloned one, which becomes the merged tree. Entries of
+     * the cloned tree win over existing entries of the same name.
+     * @param builders the builders of the trees merged so far in the target document, by root
+     * @param pdfDoc the target document
+     * @param existing the root of the tree merged so far
+     * @param cloned the root of the tree of the document being imported
+     */
+    static void merge(Map<PDFDictionary, NameTreeBuilder> builders, PDFDocument pdfDoc, PDFDictionary existing,
+            PDFDictionary cloned) {
+        synchronized (builders) {
+            NameTreeBuilder builder = builders.remove(existing);
+            if (builder == null) {
+                builder = new NameTreeBuilder();
+                builder.addTree(existing);
+            }
+            builder.addTree(cloned);
+            builder.build(pdfDoc, cloned);
+            builders.put(cloned, builder);
+        }
+    }
+
+    private void addTree(PDFDictionary root) {
+        Set<PDFDictionary> visited = Collections.newSetFromMap(new IdentityHashMap<PDFDictionary, Boolean>());
+        List<PDFDictionary> stack = new ArrayList<PDFDictionary>();
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            PDFDictionary node = stack.remove(stack.size() - 1);
+            if (!visited.add(node)) {
+                continue;
+            }
+            Object names = node.get(NAMES);
+            if (names instanceof PDFArray) {
+                PDFArray array = (PDFArray) names;
+                for (int i = 0; i + 1 < array.length(); i += 2) {
+                    Object key = array.get(i);
+                    put(toSortKey(key), new Object[] {key, array.get(i + 1)});
+                }
+            }
+            Object kids = node.get(KIDS);
+            if (kids instanceof PDFArray) {
+                PDFArray array = (PDFArray) kids;
+                for (int i = array.length() - 1; i >= 0; i--) {
+                    Object kid = array.get(i);
+                    if (kid instanceof PDFReference) {
+                        kid = ((PDFReference) kid).getObject();
+                    }
+                    if (kid instanceof PDFDictionary) {
+                        stack.add((PDFDictionary) kid);
+                    }
+                }
+            }
+        }
+    }
+
+    private void put(String sortKey, Object[] entry) {
+        int index = findLeaf(sortKey);
+        Leaf leaf = leaves.get(index);
+        leaf.entries.put(sortKey, entry);
+        leaf.changed = true;
+        if (leaf.entries.size() > MAX_ENTRIES) {
+            Iterator<String> keys = leaf.entries.keySet().iterator();
+            for (int i = 0; i < leaf.entries.size() / 2; i++) {
+                keys.next();
+            }
+            SortedMap<String, Object[]> upperHalf = leaf.entries.tailMap(keys.next());
+            Leaf upper = new Leaf();
+            upper.entries.putAll(upperHalf);
+            upperHalf.clear();
+            leaves.add(index + 1, upper);
+        }
+    }
+
+    /**
+     * Returns the index of the leaf a key belongs in: the last one whose first key isn't greater than it.
+     */
+    private int findLeaf(String sortKey) {
+        int found = 0;
+        int low = 1;
+        int high = leaves.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (leaves.get(mid).entries.firstKey().compareTo(sortKey) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the bytes of a key as ISO-8859-1 characters. Name trees are sorted by the bytes of their keys, so keys
+     * cloned as byte arrays and as strings compare the same way.
+     */
+    private static String toSortKey(Object key) {
+        byte[] bytes;
+        if (key instanceof byte[]) {
+            bytes = (byte[]) key;
+        } else if (key instanceof PDFString) {
+            bytes = ((PDFString) key).getBinary();
+        } else {
+            return String.valueOf(key);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private void build(PDFDocument pdfDoc, PDFDictionary root) {
+        clear(root);
+        if (leaves.size() == 1) {
+            root.put(NAMES, leaves.get(0).toNamesArray());
+            return;
+        }
+        List<PDFDictionary> level = new ArrayList<PDFDictionary>();
+        List<Object[]> limits = new ArrayList<Object[]>();
+        for (Leaf leaf : leaves) {
+            if (leaf.node == null) {
+                leaf.node = new PDFDictionary();
+                pdfDoc.registerTrailerObject(leaf.node);
+                leaf.changed = true;
+            }
+            Object[] leafLimits = {leaf.entries.firstEntry().getValue()[0], leaf.entries.lastEntry().getValue()[0]};
+            if (leaf.changed) {
+                leaf.node.put(NAMES, leaf.toNamesArray());
+                leaf.node.put(LIMITS, new PDFArray(leafLimits));
+                leaf.changed = false;
+            }
+            level.add(leaf.node);
+            limits.add(leafLimits);
+        }
+        int used = 0;
+        while (level.size() > MAX_ENTRIES) {
+            List<PDFDictionary> parents = new ArrayList<PDFDictionary>();
+            List<Object[]> parentLimits = new ArrayList<Object[]>();
+            for (int start = 0; start < level.size(); start += MAX_ENTRIES) {
+                int end = Math.min(start + MAX_ENTRIES, level.size());
+                PDFDictionary parent = getNode(pdfDoc, used++);
+                parent.put(KIDS, new PDFArray(level.subList(start, end).toArray()));
+                Object[] nodeLimits = {limits.get(start)[0], limits.get(end - 1)[1]};
+                parent.put(LIMITS, new PDFArray(nodeLimits));
+                parents.add(parent);
+                parentLimits.add(nodeLimits);
+            }
+            level = parents;
+            limits = parentLimits;
+        }
+        root.put(KIDS, new PDFArray(level.toArray()));
+    }
+
+    private PDFDictionary getNode(PDFDocument pdfDoc, int index) {
+        if (index < nodes.size()) {
+            PDFDictionary node = nodes.get(index);
+            clear(node);
+            return node;
+        }
+        PDFDictionary node = new PDFDictionary();
+        pdfDoc.registerTrailerObject(node);
+        nodes.add(node);
+        return node;
+    }
+
+    private static void clear(PDFDictionary node) {
+        node.remove(NAMES);
+        node.remove(KIDS);
+        node.remove(LIMITS);
+    }
+
+    /** Entries of a leaf by key, each one holding the original key object and the value. */
+    private static final class Leaf {
+        private final TreeMap<String, Object[]> entries = new TreeMap<String, Object[]>();
+        /** The node the leaf is written to, once the tree has more than one leaf. */
+        private PDFDictionary node;
+        /** Whether the entries changed since the leaf was last written to its node. */
+        private boolean changed;
+
+        private PDFArray toNamesArray() {
+            PDFArray names = new PDFArray();
+            for (Object[] entry : entries.values()) {
+                names.add(entry[0]);
+                names.add(entry[1]);
+            }
+            return names;
+        }
+    }
+}
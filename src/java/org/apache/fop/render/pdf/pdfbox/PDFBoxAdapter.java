@@ -25,17 +25,16 @@ import java.awt.geom.Rectangle2D;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 
 import org.apache.commons.io.IOUtils;
 
@@ -80,6 +79,10 @@ public class PDFBoxAdapter {
 
     private final PDFPage targetPage;
     protected final PDFDocument pdfDoc;
+    /** The document of the page copied by this adapter, null until it's copied. */
+    PDDocument sourceDoc;
+    /** The import state of the source file of the page copied by this adapter, null until it's copied. */
+    private ImportState.Source source;
 
     protected final Map<Object, Object> clonedVersion;
     protected final Map<Object, Object> objectCache;
@@ -92,6 +95,20 @@ public class PDFBoxAdapter {
     protected UniqueName uniqueName;
     private HandleAnnotations handleAnnotations;
     private EventBroadcaster eventBroadcaster;
+    /** Releases the clones of this adapter from the caches once the page is done, may be null. */
+    ClonedObjectTracker tracker;
+    private final Map<COSStream, String> digests = new IdentityHashMap<COSStream, String>();
+    private final PDFCloner cloner = new PDFCloner(this, false);
+    private final PDFCloner trailerCloner = new PDFCloner(this, true);
+    /** Cache keys of the streams looked up during the current clone, see {@link #getBaseKey(Object)}. */
+    private final Map<COSStream, Integer> streamKeys = new IdentityHashMap<COSStream, Integer>();
+    /** Hashes of the source objects looked up during the current clone, see {@link #getBaseKey(Object)}. */
+    private final Map<COSBase, PDFBoxAdapterUtil.Hash> hashes = PDFBoxAdapterUtil.newHashMemo();
+    private int cloneDepth;
+    /** Whether pages placed again are shared as Form XObjects, see {@link #reusePagesPlacedAgain()}. */
+    private boolean reusePages;
+    /** State shared with the other adapters importing into the target document, see {@link ImportState}. */
+    private ImportState importState = new ImportState(false);
 
     /**
      * Creates a new PDFBoxAdapter.
@@ -131,25 +148,144 @@ public class PDFBoxAdapter {
         this.currentMCID = currentMCID;
     }
 
+    /**
+     * Releases the objects cloned for earlier pages of the target document from the object caches and tracks the
+     * objects cloned by this adapter, see {@link ClonedObjectTracker}. The tracker is part of the import state, so
+     * {@link #shareImportState(Map)} is called first for the clones of other adapters to be released.
+     */
+    public void releaseClonesOfEarlierPages() {
+        tracker = importState.tracker;
+        tracker.startPage(targetPage);
+    }
+
+    /**
+     * Shares the state of the imports into the target document, e.g. the indexes of merged form fields, with the
+     * other adapters of a render. Without it, the state only lasts as long as this adapter.
+     * @param renderCache a map kept by the caller for the duration of the render
+     */
+    public void shareImportState(Map<Object, Object> renderCache) {
+        importState = ImportState.get(renderCache, pdfDoc);
+    }
+
+    ImportState getImportState() {
+        return importState;
+    }
+
+    ImportState.Source getSource() {
+        return source;
+    }
+
+    /**
+     * Inlines a source page the first time it's placed into the target document and makes it a Form XObject shared
+     * by all further placements of the page once it's placed again, see {@link PageForms}. Pages with patterns,
+     * which are adjusted to each placement, are always inlined. The placements are recorded in the import state, so
+     * pages placed by other adapters are only seen if it's shared with {@link #shareImportState(Map)}.
+     */
+    public void reusePagesPlacedAgain() {
+        reusePages = true;
+    }
+
     protected Object getCachedClone(Object base) throws IOException {
-        Object key = PDFBoxAdapterUtil.getBaseKey(base);
+        Object key = getBaseKey(base);
         Object o = clonedVersion.get(key);
         if (o == null) {
-            return objectCache.get(key);
+            o = objectCache.get(key);
+        }
+        if (key instanceof Integer) {
+            COSStream stream = (COSStream) ((COSObject) base).getObject();
+            if (StreamRegistry.isRegistered(stream)) {
+                //the hash may collide, the digest decides
+                return importState.streamRegistry.get(getContentDigest(stream), o);
+            }
         }
         return o;
     }
 
+    /**
+     * Returns the content digest of a source stream, computed once per adapter.
+     */
+    String getContentDigest(COSStream stream) throws IOException {
+        String digest = digests.get(stream);
+        if (digest == null) {
+            digest = PDFBoxAdapterUtil.getContentDigest(stream);
+            digests.put(stream, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * Returns the cache key of a source object. The key of a stream or direct dictionary is a hash of its content,
+     * so while a clone is made the hashes of the objects it contains are remembered rather than computed again for
+     * each object on the way down.
+     */
+    Object getBaseKey(Object base) throws IOException {
+        if (cloneDepth == 0) {
+            return PDFBoxAdapterUtil.getBaseKey(base);
+        }
+        if (!(base instanceof COSObject) || !(((COSObject) base).getObject() instanceof COSStream)) {
+            return PDFBoxAdapterUtil.getBaseKey(base, hashes);
+        }
+        COSStream stream = (COSStream) ((COSObject) base).getObject();
+        Integer key = streamKeys.get(stream);
+        if (key == null) {
+            Object baseKey = PDFBoxAdapterUtil.getBaseKey(base, hashes);
+            if (baseKey instanceof Integer) {
+                streamKeys.put(stream, (Integer) baseKey);
+            }
+            return baseKey;
+        }
+        return key;
+    }
+
+    void startClone() {
+        cloneDepth++;
+    }
+
+    void endClone() {
+        if (--cloneDepth == 0) {
+            streamKeys.clear();
+            hashes.clear();
+        }
+    }
+
+    /**
+     * Called when the data of a source stream is rewritten, which changes the keys of the streams referring to it.
+     */
+    void sourceStreamChanged() {
+        streamKeys.clear();
+        hashes.clear();
+    }
+
+    /**
+     * Returns the cloner of this adapter.
+     * @param trailer whether the clones are registered as trailer objects
+     */
+    PDFCloner getCloner(boolean trailer) {
+        return trailer ? trailerCloner : cloner;
+    }
+
     protected Object cloneForNewDocument(Object base) throws IOException {
-        return new PDFCloner(this, false).cloneForNewDocument(base);
+        return cloner.cloneForNewDocument(base);
     }
 
     protected Object cloneForNewDocument(Object base, Object keyBase, Collection exclude) throws IOException {
-        return new PDFCloner(this, false).cloneForNewDocument(base, keyBase, exclude);
+        return cloner.cloneForNewDocument(base, keyBase, exclude);
     }
 
     protected void cacheClonedObject(Object base, Object cloned) throws IOException {
-        new PDFCloner(this, false).cacheClonedObject(base, cloned);
+        cloner.cacheClonedObject(base, cloned);
+    }
+
+    /**
+     * Uses an object already cloned into the target document, e.g. by another adapter, as the clone of a source
+     * object for this page. Unlike {@link #cacheClonedObject}, it isn't made available to other source files.
+     */
+    void reuseClone(Object base, PDFObject cloned) throws IOException {
+        Object key = getBaseKey(base);
+        clonedVersion.put(key, cloned);
+        if (tracker != null) {
+            tracker.cached(clonedVersion, null, key, true);
+        }
     }
 
     protected void transferDict(COSDictionary orgDict, PDFStream targetDict, Set filter) throws IOException {
@@ -172,6 +308,10 @@ public class PDFBoxAdapter {
 
     /**
      * Creates a stream (from FOP's PDF library) from a PDF page parsed with PDFBox.
+     * <p>
+     * The source document is changed temporarily while the page is copied, calls for the same source document are
+     * therefore serialized. Pages of different source documents can be copied in parallel as long as each thread
+     * writes to its own target document.
      * @param sourceDoc the source PDF the given sourcePage to be copied belongs to
      * @param sourcePage the page to transform into a stream
      * @param key value to use as key for the stream
@@ -185,9 +325,25 @@ public class PDFBoxAdapter {
     public Object createStreamFromPDFBoxPage(PDDocument sourceDoc, PDPage sourcePage, String key,
                                              AffineTransform pageAdjust, FontInfo fontinfo, Rectangle destRect,
                                              AffineTransform generatorAT) throws IOException {
+        synchronized (sourceDoc) {
+            this.sourceDoc = sourceDoc;
+            this.source = importState.getSource(key.split("#")[0]);
+            PatternUtil patternUtil =
+                    new PatternUtil(targetPage, destRect, sourcePage, pdfDoc.isFormXObjectEnabled(), generatorAT);
+            try {
+                return createStream(sourceDoc, sourcePage, key, pageAdjust, fontinfo, destRect, patternUtil);
+            } finally {
+                patternUtil.restorePatterns();
+            }
+        }
+    }
+
+    private Object createStream(PDDocument sourceDoc, PDPage sourcePage, String key, AffineTransform pageAdjust,
+                                FontInfo fontinfo, Rectangle destRect, PatternUtil patternUtil) throws IOException {
         COSDictionary sourcePageResources = getResources(sourcePage);
-        PatternUtil patternUtil =
-                new PatternUtil(targetPage, destRect, sourcePage, pdfDoc.isFormXObjectEnabled(), generatorAT);
+        if (PDFImagesConfig.isEnabled(null, PDFImagesConfig.PRUNE_RESOURCES)) {
+            sourcePageResources = ResourcePruner.prune(sourcePageResources, sourcePage);
+        }
         uniqueName = new UniqueName(
                 key, sourcePageResources, patternUtil.getPatternNames(), pdfDoc.isFormXObjectEnabled(), destRect);
         key = patternUtil.getKey(key);
@@ -195,6 +351,14 @@ public class PDFBoxAdapter {
         if (pageNumbers.containsKey(targetPage.getPageIndex())) {
             pageNumbers.get(targetPage.getPageIndex()).set(0, targetPage.makeReference());
         }
+        PageForms forms = reusePages && !pdfDoc.isFormXObjectEnabled()
+                && patternUtil.getPatternNames().isEmpty() ? importState.pageForms : null;
+        if (forms != null) {
+            PDFFormXObject form = forms.getForm(key);
+            if (form != null) {
+                return form;
+            }
+        }
         PDStream pdStream = getContents(sourcePage);
 
         COSDictionary fonts = (COSDictionary)sourcePageResources.getDictionaryObject(COSName.FONT);
@@ -213,6 +377,9 @@ public class PDFBoxAdapter {
                     PDFWriter writer = new PDFWriter(uniqueName, currentMCID);
                     newStream = writer.writeText(pdStream);
                     clonedVersion.put(key, newStream);
+                    if (tracker != null) {
+                        tracker.cached(clonedVersion, null, key, false);
+                    }
                 }
             }
             pdStream = new PDStream(sourceDoc, new ByteArrayInputStream(newStream.getBytes(PDFDocument.ENCODING)));
@@ -250,8 +417,17 @@ public class PDFBoxAdapter {
         }
 
         if (pdfDoc.isFormXObjectEnabled()) {
+            if (pdfDoc.getMergeFontsParams() != null) {
+                throw new RuntimeException("merge-fonts and form-xobject can't both be enabled");
+            }
             return getFormXObject(pageResources, pageStream, key, sourcePage);
         }
+        if (forms != null && forms.place(key)) {
+            //the content has been rewritten for the resources and fonts of the target page, so it's used as is
+            PDFFormXObject form = getFormXObject(pageResources, pageStream, key, sourcePage);
+            forms.putForm(key, form);
+            return form;
+        }
 
         if (originalPageContents != null) {
             transferDict(originalPageContents, pageStream, filter);
@@ -319,9 +495,6 @@ public class PDFBoxAdapter {
 
     private PDFFormXObject getFormXObject(PDFDictionary pageResources, PDFStream pageStream, String key, PDPage page)
         throws IOException {
-        if (pdfDoc.getMergeFontsParams() != null) {
-            throw new RuntimeException("merge-fonts and form-xobject can't both be enabled");
-        }
         if (!pageResources.hasObjectNumber()) {
             pdfDoc.registerObject(pageResources);
         }
@@ -485,6 +658,10 @@ public class PDFBoxAdapter {
         if (ocDictionary != null) {
             this.pdfDoc.getRoot().put(COSName.OCPROPERTIES.getName(), ocDictionary);
         }
+        if (!source.markCatalogMerged()) {
+            //the rest of the catalog has already been merged when an earlier page was imported
+            return;
+        }
         COSDictionary catalog = sourceDoc.getDocumentCatalog().getCOSObject();
         copyToRoot(catalog.getDictionaryObject(COSName.VIEWER_PREFERENCES), COSName.VIEWER_PREFERENCES.getName());
         copyToRoot(catalog.getDictionaryObject("Requirements"), "Requirements");
@@ -507,48 +684,48 @@ public class PDFBoxAdapter {
     private void copyOutlineToRoot(COSBase input, String type) throws IOException {
         if (input != null) {
             PDFDictionary output = (PDFDictionary) pdfDoc.getRoot().get(type);
-            PDFDictionary cloned = (PDFDictionary) new PDFCloner(this, true).cloneForNewDocument(input);
+            PDFDictionary cloned = (PDFDictionary) trailerCloner.cloneForNewDocument(input);
             if (output != null) {
                 copyDict(output, cloned);
             }
-            movePage(cloned, new ArrayList<>());
+            movePage(cloned, Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
             pdfDoc.getRoot().put(type, cloned);
         }
     }
 
-    private void movePage(PDFDictionary cloned, List<Object> visited) {
+    private void movePage(PDFDictionary cloned, Set<Object> visited) {
         for (String k : cloned.keySet()) {
             Object obj = cloned.get(k);
-            if (obj instanceof PDFDictionary && !visited.contains(obj)) {
-                visited.add(obj);
+            if (obj instanceof PDFDictionary && visited.add(obj)) {
                 movePage((PDFDictionary) obj, visited);
             }
-            if (obj instanceof PDFArray && !visited.contains(obj)) {
-                visited.add(obj);
+            if (obj instanceof PDFArray && visited.add(obj)) {
                 movePage((PDFArray) obj, visited, k);
             }
         }
     }
 
-    private void movePage(PDFArray array, List<Object> visited, String k) {
+    private void movePage(PDFArray array, Set<Object> visited, String k) {
         for (int i = 0; i < array.length(); i++) {
             Object obj = array.get(i);
-            if (obj instanceof PDFDictionary && !visited.contains(obj)) {
-                visited.add(obj);
+            if (obj instanceof PDFDictionary && visited.add(obj)) {
                 movePage((PDFDictionary) obj, visited);
             }
-            if (obj instanceof PDFArray && !visited.contains(obj)) {
+            if (obj instanceof PDFArray && visited.add(obj)) {
                 if (("Dest".equals(k) || "Names".equals(k)) && ((PDFArray) obj).get(0) instanceof PDFReference) {
                     PDFReference ref = (PDFReference) ((PDFArray) obj).get(0);
                     array.set(i, ref.getObject());
                 }
-                visited.add(obj);
                 movePage((PDFArray) obj, visited, k);
             }
         }
     }
 
     private void copyDict(PDFDictionary output, PDFDictionary cloned) {
+        if (NameTreeBuilder.isNameTree(output) && NameTreeBuilder.isNameTree(cloned)) {
+            NameTreeBuilder.merge(importState.nameTrees, pdfDoc, output, cloned);
+            return;
+        }
         for (String k : output.keySet()) {
             Object existingObj = output.get(k);
             if (existingObj instanceof PDFDictionary) {
@@ -564,16 +741,7 @@ public class PDFBoxAdapter {
             } else if (existingObj instanceof PDFArray) {
                 PDFArray existing = (PDFArray) existingObj;
                 PDFArray clonedArray = (PDFArray) cloned.get(k);
-                if (k.equals("Names") && existing.length() > 0 && clonedArray != null) {
-                    Map<String, Object[]> sortData = new TreeMap<>();
-                    readNamesData(sortData, existing);
-                    readNamesData(sortData, clonedArray);
-                    clonedArray.clear();
-                    for (Object[] sortedData : sortData.values()) {
-                        clonedArray.add(sortedData[0]);
-                        clonedArray.add(sortedData[1]);
-                    }
-                } else if (clonedArray != null) {
+                if (clonedArray != null) {
                     for (int i = 0; i < existing.length(); i++) {
                         clonedArray.add(existing.get(i));
                     }
@@ -584,27 +752,6 @@ public class PDFBoxAdapter {
         }
     }
 
-    private void readNamesData(Map<String, Object[]> sortData, PDFArray array) {
-        Object[] data = new Object[2];
-        for (int i = 0; i < array.length(); i++) {
-            Object o = array.get(i);
-            if (o instanceof PDFDictionary) {
-                data[1] = o;
-                Object name = ((PDFDictionary)o).get("F");
-                if (name == null) {
-                    name = data[0];
-                }
-                if (name instanceof byte[]) {
-                    name = new String((byte[])name, StandardCharsets.UTF_8);
-                }
-                sortData.put((String) name, data);
-                data = new Object[2];
-            } else {
-                data[0] = o;
-            }
-        }
-    }
-
     private void handleAnnotations(PDDocument sourceDoc, PDPage page, AffineTransform pageAdjust, Rectangle pos)
         throws IOException {
         PDDocumentCatalog srcCatalog = sourceDoc.getDocumentCatalog();
@@ -614,27 +761,13 @@ public class PDFBoxAdapter {
             return;
         }
 
-        PDFBoxAdapterUtil.moveAnnotations(page, pageAnnotations, pageAdjust, pos);
-
         //Pseudo-cache the target page in place of the original source page.
         //This essentially replaces the original page reference with the target page
-        List kids = PDFBoxAdapterUtil.getKids(sourceDoc);
-        for (int i = 0; i < kids.size(); i++) {
-            //Hopefully safe to cast, as kids need to be indirect objects
-            Object kid = kids.get(i);
-            if (getCachedClone(kid) == null) {
-                if (!pageNumbers.containsKey(i)) {
-                    PDFArray a = new PDFArray();
-                    a.add(null);
-                    pdfDoc.assignObjectNumber(a);
-                    pdfDoc.addTrailerObject(a);
-                    pageNumbers.put(i, a);
-                }
-                cacheClonedObject(kid, pageNumbers.get(i));
-            }
+        if (source.markPagesRegistered(clonedVersion)) {
+            registerPages(sourceDoc);
         }
 
-        Set<?> fields = copyAnnotations(page, srcAcroForm);
+        Set<?> fields = copyAnnotations(page, srcAcroForm, pageAdjust, pos);
         boolean formAlreadyCopied = getCachedClone(srcAcroForm) != null;
         PDFRoot catalog = this.pdfDoc.getRoot();
         PDFDictionary destAcroForm = (PDFDictionary)catalog.get(COSName.ACRO_FORM.getName());
@@ -663,39 +796,205 @@ public class PDFBoxAdapter {
             clonedFields = new PDFArray();
             destAcroForm.put(COSName.FIELDS.getName(), clonedFields);
         }
+        Set<Object> knownFields = getFieldSet(clonedFields);
         for (Object field : fields) {
             if (field instanceof COSBase) {
                 field = cloneForNewDocument(field, field, Arrays.asList(COSName.KIDS));
             }
-            if (!clonedFields.contains(field)) {
+            if (knownFields.add(field)) {
                 clonedFields.add(field);
             }
         }
     }
 
-    private Set<?> copyAnnotations(PDPage page, PDAcroForm srcAcroForm) throws IOException {
+    /**
+     * Returns the entries of the target /Fields array as a set, kept along with the import state.
+     */
+    private Set<Object> getFieldSet(PDFArray clonedFields) {
+        synchronized (importState) {
+            FieldSet fieldSet = importState.fieldSets.get(clonedFields);
+            if (fieldSet == null) {
+                fieldSet = new FieldSet();
+                importState.fieldSets.put(clonedFields, fieldSet);
+            }
+            return fieldSet.get(clonedFields);
+        }
+    }
+
+    /**
+     * The entries of a target /Fields array. Fields are only ever appended, so new ones are added on lookup.
+     */
+    static final class FieldSet {
+        private final Set<Object> fields = new HashSet<Object>();
+        private int indexed;
+
+        Set<Object> get(PDFArray clonedFields) {
+            if (clonedFields.length() < indexed) {
+                fields.clear();
+                indexed = 0;
+            }
+            for (; indexed < clonedFields.length(); indexed++) {
+                fields.add(clonedFields.get(indexed));
+            }
+            return fields;
+        }
+    }
+
+    private void registerPages(PDDocument sourceDoc) throws IOException {
+        List kids = PDFBoxAdapterUtil.getKids(sourceDoc);
+        for (int i = 0; i < kids.size(); i++) {
+            //Hopefully safe to cast, as kids need to be indirect objects
+            Object kid = kids.get(i);
+            if (getCachedClone(kid) == null) {
+                if (!pageNumbers.containsKey(i)) {
+                    PDFArray a = new PDFArray();
+                    a.add(null);
+                    pdfDoc.assignObjectNumber(a);
+                    pdfDoc.addTrailerObject(a);
+                    pageNumbers.put(i, a);
+                }
+                cacheClonedObject(kid, pageNumbers.get(i));
+            }
+        }
+    }
+
+    private Set<?> copyAnnotations(PDPage page, PDAcroForm srcAcroForm, AffineTransform pageAdjust, Rectangle pos)
+        throws IOException {
         COSArray annots = (COSArray) page.getCOSObject().getDictionaryObject(COSName.ANNOTS);
         if (annots != null) {
+            AppearanceStreams appearances = new AppearanceStreams(this);
             for (COSBase annotBase : annots) {
-                Collection<COSName> exclude = new ArrayList<COSName>();
-                exclude.add(COSName.P);
-                if (annotBase instanceof COSObject) {
-                    COSObject annot = (COSObject) annotBase;
-                    handleAnnotations.load(annot, srcAcroForm);
-                    if (((COSDictionary) annot.getObject()).getItem(COSName.STRUCT_PARENT) != null) {
-                        exclude.add(COSName.PARENT);
-                    }
-                }
-                PDFObject clonedAnnot = (PDFObject)new PDFCloner(this, pdfDoc.isMergeFormFieldsEnabled())
-                        .cloneForNewDocument(annotBase, annotBase, exclude);
-                if (clonedAnnot instanceof PDFDictionary) {
-                    handleAnnotations.cloneAnnotParent(annotBase, (PDFDictionary) clonedAnnot, exclude);
-                    clonedAnnot.setParent(targetPage);
-                    PDFBoxAdapterUtil.updateAnnotationLink((PDFDictionary) clonedAnnot);
+                PDFObject clonedAnnot = copyAnnotation(annotBase, srcAcroForm, appearances);
+                COSBase annot = annotBase instanceof COSObject ? ((COSObject) annotBase).getObject() : annotBase;
+                if (clonedAnnot instanceof PDFDictionary && annot instanceof COSDictionary) {
+                    clonedAnnot = placeAnnotation(page, (COSDictionary) annot, (PDFDictionary) clonedAnnot,
+                            pageAdjust, pos);
                 }
                 targetPage.addAnnotation(clonedAnnot);
             }
         }
         return handleAnnotations.getFields();
     }
+
+    /**
+     * Places the clone of an annotation on the target page. The cached clone is used by the first placement; every
+     * further placement, e.g. of the same page on another target page, gets its own copy of the entries the clone
+     * had before it was placed, so each placement keeps its own /Rect.
+     * @return the placed annotation
+     */
+    private PDFDictionary placeAnnotation(PDPage page, COSDictionary annot, PDFDictionary clonedAnnot,
+                                          AffineTransform pageAdjust, Rectangle pos) throws IOException {
+        Map<PDFDictionary, PDFDictionary> placed = importState.placedAnnotations;
+        PDFDictionary placedAnnot = clonedAnnot;
+        synchronized (placed) {
+            PDFDictionary unplaced = placed.get(clonedAnnot);
+            if (unplaced == null) {
+                placed.put(clonedAnnot, PDFBoxAdapterUtil.copyDictionary(clonedAnnot));
+            } else {
+                placedAnnot = PDFBoxAdapterUtil.copyDictionary(unplaced);
+            }
+        }
+        if (placedAnnot != clonedAnnot) {
+            pdfDoc.registerObject(placedAnnot);
+            placedAnnot.setParent(targetPage);
+            Object field = placedAnnot.get(COSName.PARENT.getName());
+            Object kids = field instanceof PDFDictionary ? ((PDFDictionary) field).get(COSName.KIDS.getName()) : null;
+            if (kids instanceof PDFArray) {
+                ((PDFArray) kids).add(placedAnnot);
+            }
+        }
+        if (PDFUtil.getNormalizedRotation(page) > 0) {
+            useIdentityMatrices(annot, placedAnnot);
+        }
+        PDFBoxAdapterUtil.placeAnnotation(page, annot, placedAnnot, pageAdjust, pos);
+        return placedAnnot;
+    }
+
+    /**
+     * Gives the normal and down appearances of an annotation on a rotated page an identity /Matrix, as the page
+     * rotation is applied to the annotation rectangle instead. The source streams and their cached clones keep
+     * their matrix for placements on unrotated pages.
+     */
+    private void useIdentityMatrices(COSDictionary annot, PDFDictionary placedAnnot) throws IOException {
+        COSBase ap = annot.getDictionaryObject(COSName.AP);
+        Object clonedAp = placedAnnot.get(getClonedName(COSName.AP));
+        if (!(ap instanceof COSDictionary) || !(clonedAp instanceof PDFDictionary)) {
+            return;
+        }
+        PDFDictionary placedAp = PDFBoxAdapterUtil.copyDictionary((PDFDictionary) clonedAp);
+        for (COSName name : new COSName[] {COSName.N, COSName.D}) {
+            COSBase appearance = ((COSDictionary) ap).getDictionaryObject(name);
+            Object cloned = placedAp.get(getClonedName(name));
+            if (appearance instanceof COSStream && cloned != null) {
+                placedAp.put(getClonedName(name), getIdentityMatrixClone((COSStream) appearance, cloned));
+            } else if (appearance instanceof COSDictionary && cloned instanceof PDFDictionary) {
+                PDFDictionary states = PDFBoxAdapterUtil.copyDictionary((PDFDictionary) cloned);
+                for (Map.Entry<COSName, COSBase> state : ((COSDictionary) appearance).entrySet()) {
+                    COSBase stream = state.getValue() instanceof COSObject
+                            ? ((COSObject) state.getValue()).getObject() : state.getValue();
+                    String stateName = getClonedName(state.getKey());
+                    if (stream instanceof COSStream && states.get(stateName) != null) {
+                        states.put(stateName, getIdentityMatrixClone((COSStream) stream, states.get(stateName)));
+                    }
+                }
+                placedAp.put(getClonedName(name), states);
+            }
+        }
+        placedAnnot.put(getClonedName(COSName.AP), placedAp);
+    }
+
+    /**
+     * Returns the clone of an appearance stream with an identity /Matrix, made once per target document.
+     * @param appearance the source stream
+     * @param cloned its cached clone
+     */
+    private Object getIdentityMatrixClone(COSStream appearance, Object cloned) throws IOException {
+        COSArray matrix = appearance.getCOSArray(COSName.MATRIX);
+        if (!(cloned instanceof PDFStream) || matrix == null
+                || Arrays.equals(matrix.toFloatArray(), new float[] {1, 0, 0, 1, 0, 0})) {
+            return cloned;
+        }
+        Map<PDFStream, PDFStream> clones = importState.identityMatrixAppearances;
+        synchronized (clones) {
+            PDFStream clone = clones.get(cloned);
+            if (clone == null) {
+                clone = getCloner(pdfDoc.isMergeFormFieldsEnabled()).cloneWithIdentityMatrix(appearance);
+                clones.put((PDFStream) cloned, clone);
+            }
+            return clone;
+        }
+    }
+
+    /**
+     * Returns the name a dictionary key of the source page gets in its clone.
+     */
+    private String getClonedName(COSName name) {
+        return uniqueName != null ? uniqueName.getName(name) : name.getName();
+    }
+
+    private PDFObject copyAnnotation(COSBase annotBase, PDAcroForm srcAcroForm, AppearanceStreams appearances)
+        throws IOException {
+        Collection<COSName> exclude = new ArrayList<COSName>();
+        exclude.add(COSName.P);
+        Map<COSObject, String> appearanceDigests = Collections.emptyMap();
+        if (annotBase instanceof COSObject) {
+            COSObject annot = (COSObject) annotBase;
+            handleAnnotations.load(annot, srcAcroForm);
+            if (((COSDictionary) annot.getObject()).getItem(COSName.STRUCT_PARENT) != null) {
+                exclude.add(COSName.PARENT);
+            }
+            if (annot.getObject() instanceof COSDictionary) {
+                appearanceDigests = appearances.share((COSDictionary) annot.getObject());
+            }
+        }
+        PDFObject clonedAnnot = (PDFObject) getCloner(pdfDoc.isMergeFormFieldsEnabled())
+                .cloneForNewDocument(annotBase, annotBase, exclude);
+        appearances.register(appearanceDigests);
+        if (clonedAnnot instanceof PDFDictionary) {
+            handleAnnotations.cloneAnnotParent(annotBase, (PDFDictionary) clonedAnnot, exclude);
+            clonedAnnot.setParent(targetPage);
+            PDFBoxAdapterUtil.updateAnnotationLink((PDFDictionary) clonedAnnot);
+        }
+        return clonedAnnot;
+    }
 }
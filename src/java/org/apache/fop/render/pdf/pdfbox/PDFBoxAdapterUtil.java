@@ -23,11 +23,18 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -43,87 +50,73 @@ import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
-import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
-import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceDictionary;
-import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceStream;
 
 import org.apache.fop.pdf.PDFArray;
 import org.apache.fop.pdf.PDFDictionary;
 
 public final class PDFBoxAdapterUtil {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     private PDFBoxAdapterUtil() {
     }
 
-    private static Integer getStreamHash(COSStream o) throws IOException {
-        return getDictionaryHash(o).hashCode();
+    private static Integer getStreamHash(COSStream o, Map<COSBase, Hash> memo) throws IOException {
+        return getHash(o, null, memo).code;
     }
 
-    private static String getDictionaryHash(COSBase base) throws IOException {
-        return getDictionaryHash(base, new HashMap<COSBase, String>());
+    /**
+     * Returns a SHA-256 digest of a stream's data and dictionary, including the data of the streams it refers to.
+     * Unlike the hash used as cache key, streams with the same digest can be taken to have the same content.
+     * @param stream the stream
+     * @return the digest as hex string
+     * @throws IOException if a stream can't be read
+     */
+    static String getContentDigest(COSStream stream) throws IOException {
+        return getHash(stream, createSHA256(), null).text;
     }
 
-    private static String getDictionaryHash(COSBase base, Map<COSBase, String> objs) throws IOException {
-        if (base == null) {
-            return "null";
-        }
-        if (objs.containsKey(base)) {
-            return objs.get(base);
+    private static MessageDigest createSHA256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
-        objs.put(base, String.valueOf(base.hashCode()));
-        String value;
-        if (base instanceof COSDictionary) {
-            StringBuilder sb = new StringBuilder("COSDictionary{");
-            Map<COSName, String> map = new HashMap<>();
-            for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) base).entrySet()) {
-                map.put(entry.getKey(), getDictionaryHash(entry.getValue(), objs));
-            }
-            for (Map.Entry<COSName, String> entry : new TreeMap<>(map).entrySet()) {
-                sb.append(entry.getKey());
-                sb.append(":");
-                sb.append(entry.getValue());
-                sb.append(";");
-            }
-            sb.append("}");
-            if (base instanceof COSStream && ((COSStream) base).hasData()) {
-                InputStream stream = ((COSStream)base).createRawInputStream();
-                byte[] b = IOUtils.toByteArray(stream);
-                sb.append("COSStream{").append(Arrays.hashCode(b)).append("}");
-            }
-            value = sb.toString();
-        } else if (base instanceof COSObject) {
-            COSObject obj = (COSObject) base;
-            value = "COSObject{" + getDictionaryHash(obj.getObject(), objs) + "}";
-        } else if (base instanceof COSArray) {
-            COSArray array = (COSArray) base;
-            StringBuilder sb = new StringBuilder("COSArray[");
-            for (Object o : array) {
-                if (o instanceof COSObject) {
-                    COSBase obj = ((COSObject) o).getObject();
-                    if (obj instanceof COSStream) {
-                        sb.append(getDictionaryHash(obj, objs));
-                    } else {
-                        sb.append(o);
-                    }
-                } else {
-                    sb.append(o);
-                }
-                sb.append(",");
-            }
-            sb.append("]");
-            value = sb.toString();
-        } else {
-            value = base.toString();
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xF];
         }
-        objs.put(base, value);
-        return value;
+        return new String(hex);
+    }
+
+    /**
+     * Hashes an object and the objects it contains, see {@link HashWalk}.
+     * @param base the object
+     * @param md the digest to make a content digest with, or null for the hash used as cache key
+     * @param memo the cache keys of objects hashed before, by identity, or null
+     */
+    private static Hash getHash(COSBase base, MessageDigest md, Map<COSBase, Hash> memo) throws IOException {
+        return new HashWalk(md, memo).hash(base);
     }
 
     protected static Object getBaseKey(Object base) throws IOException {
+        return getBaseKey(base, null);
+    }
+
+    /**
+     * Returns the cache key of a source object.
+     * @param base the source object
+     * @param memo the hashes of the objects hashed before, see {@link #newHashMemo()}, or null
+     */
+    static Object getBaseKey(Object base, Map<COSBase, Hash> memo) throws IOException {
         if (base instanceof COSObject) {
             COSObject obj = (COSObject)base;
             COSBase o = obj.getObject();
             if (o instanceof COSStream) {
-                Integer hash = PDFBoxAdapterUtil.getStreamHash((COSStream) o);
+                Integer hash = PDFBoxAdapterUtil.getStreamHash((COSStream) o, memo);
                 if (hash != null) {
                     return hash;
                 }
@@ -131,12 +124,18 @@ public final class PDFBoxAdapterUtil {
             return obj.getObjectNumber() + " " + obj.getGenerationNumber();
         }
         if (base instanceof COSDictionary) {
-            String dict = PDFBoxAdapterUtil.getDictionaryHash((COSBase) base);
-            return String.valueOf(dict.hashCode());
+            return String.valueOf(getHash((COSBase) base, null, memo).code);
         }
         return null;
     }
 
+    /**
+     * Returns an empty map to remember the hashes of source objects in while their content doesn't change.
+     */
+    static Map<COSBase, Hash> newHashMemo() {
+        return new IdentityHashMap<COSBase, Hash>();
+    }
+
     protected static void rotate(int rotation, PDRectangle viewBox, AffineTransform pageAdjust) {
         float w = viewBox.getWidth();
         float h = viewBox.getHeight();
@@ -180,52 +179,75 @@ public final class PDFBoxAdapterUtil {
         }
     }
 
-    protected static void moveAnnotations(
-            PDPage page, List pageAnnotations, AffineTransform pageAdjust, Rectangle pos) {
+    /**
+     * Moves the clone of an annotation to where the source page is placed. The source annotation is left as is,
+     * so the same page can be placed any number of times.
+     * @param page the source page
+     * @param annot the source annotation
+     * @param clonedAnnot the clone of the annotation
+     * @param pageAdjust the placement of the page
+     * @param pos the target rectangle of the page
+     */
+    protected static void placeAnnotation(PDPage page, COSDictionary annot, PDFDictionary clonedAnnot,
+                                          AffineTransform pageAdjust, Rectangle pos) {
+        COSArray rectArray = annot.getCOSArray(COSName.RECT);
+        if (rectArray == null || rectArray.size() != 4) {
+            return;
+        }
+        PDRectangle rect = new PDRectangle(rectArray);
         PDRectangle mediaBox = page.getMediaBox();
         PDRectangle cropBox = page.getCropBox();
         PDRectangle viewBox = cropBox != null ? cropBox : mediaBox;
-        for (Object obj : pageAnnotations) {
-            PDAnnotation annot = (PDAnnotation) obj;
-            PDRectangle rect = annot.getRectangle();
-            float translateX = (float) (pageAdjust.getTranslateX() - viewBox.getLowerLeftX());
-            float translateY = (float) (pageAdjust.getTranslateY() - viewBox.getLowerLeftY());
-            if (rect != null) {
-                rect.setUpperRightX(rect.getUpperRightX() + translateX);
-                rect.setLowerLeftX(rect.getLowerLeftX() + translateX);
-                rect.setUpperRightY(rect.getUpperRightY() + translateY);
-                rect.setLowerLeftY(rect.getLowerLeftY() + translateY);
-                int rotation = PDFUtil.getNormalizedRotation(page);
-                if (rotation > 0) {
-                    AffineTransform transform = AffineTransform.getTranslateInstance(translateX, translateY);
-                    float height = (float)pos.getHeight() / 1000f;
-                    rotateStream(transform, rotation, height, annot);
-                    transform.translate(-translateX, -translateY);
-                    rect = applyTransform(rect, transform);
-                }
-                annot.setRectangle(rect);
-            }
+        float translateX = (float) (pageAdjust.getTranslateX() - viewBox.getLowerLeftX());
+        float translateY = (float) (pageAdjust.getTranslateY() - viewBox.getLowerLeftY());
+        rect.setUpperRightX(rect.getUpperRightX() + translateX);
+        rect.setLowerLeftX(rect.getLowerLeftX() + translateX);
+        rect.setUpperRightY(rect.getUpperRightY() + translateY);
+        rect.setLowerLeftY(rect.getLowerLeftY() + translateY);
+        int rotation = PDFUtil.getNormalizedRotation(page);
+        if (rotation > 0) {
+            AffineTransform transform = AffineTransform.getTranslateInstance(translateX, translateY);
+            float height = (float)pos.getHeight() / 1000f;
+            rotateStream(transform, rotation, height, clonedAnnot);
+            transform.translate(-translateX, -translateY);
+            rect = applyTransform(rect, transform);
         }
+        PDFArray placed = new PDFArray();
+        placed.add(rect.getLowerLeftX());
+        placed.add(rect.getLowerLeftY());
+        placed.add(rect.getUpperRightX());
+        placed.add(rect.getUpperRightY());
+        clonedAnnot.put(COSName.RECT.getName(), placed);
     }
 
-    private static void rotateStream(AffineTransform transform, int rotation, float height, PDAnnotation annot) {
+    private static void rotateStream(AffineTransform transform, int rotation, float height,
+                                     PDFDictionary clonedAnnot) {
         transform.rotate(Math.toRadians(-rotation));
         transform.translate(-height, 0);
-        COSDictionary mkDict = (COSDictionary) annot.getCOSObject().getDictionaryObject(COSName.MK);
-        if (mkDict != null) {
-            mkDict.removeItem(COSName.R);
-        }
-        PDAppearanceDictionary appearance = annot.getAppearance();
-        if (appearance != null) {
-            for (PDAppearanceStream stream : appearance.getNormalAppearance().getSubDictionary().values()) {
-                stream.setMatrix(new AffineTransform());
-            }
-            for (PDAppearanceStream stream : appearance.getDownAppearance().getSubDictionary().values()) {
-                stream.setMatrix(new AffineTransform());
+        Object mk = clonedAnnot.get(COSName.MK.getName());
+        if (mk instanceof PDFDictionary && ((PDFDictionary) mk).containsKey(COSName.R.getName())) {
+            //the clone of /MK may be shared with other annotations, so replace it
+            PDFDictionary mkDict = new PDFDictionary();
+            for (String key : ((PDFDictionary) mk).keySet()) {
+                if (!COSName.R.getName().equals(key)) {
+                    mkDict.put(key, ((PDFDictionary) mk).get(key));
+                }
             }
+            clonedAnnot.put(COSName.MK.getName(), mkDict);
         }
     }
 
+    /**
+     * Returns a shallow copy of a dictionary of the target document.
+     */
+    static PDFDictionary copyDictionary(PDFDictionary dict) {
+        PDFDictionary copy = new PDFDictionary();
+        for (String key : dict.keySet()) {
+            copy.put(key, dict.get(key));
+        }
+        return copy;
+    }
+
     private static PDRectangle applyTransform(PDRectangle rect, AffineTransform apAt) {
         Rectangle2D.Float rectangle = new Rectangle2D.Float();
         rectangle.setRect(rect.getLowerLeftX(), rect.getLowerLeftY(), rect.getWidth(), rect.getHeight());
@@ -237,13 +259,18 @@ public final class PDFBoxAdapterUtil {
 
     public static List getKids(PDDocument sourceDoc) {
         List kids = new ArrayList();
+        Set<Object> seenKids = new HashSet<Object>();
+        Set<COSDictionary> seenParents = Collections.newSetFromMap(new IdentityHashMap<COSDictionary, Boolean>());
         List<PDPage> pages = getAllKids(sourceDoc.getDocumentCatalog().getPages().getCOSObject(), new HashSet<>());
 
         for (PDPage page : pages) {
             PDPage parent = getParent(page);
+            if (!seenParents.add(parent.getCOSObject())) {
+                continue;
+            }
             COSArray kidsArray = (COSArray) parent.getCOSObject().getDictionaryObject(COSName.KIDS);
             for (Object kid : kidsArray.toList()) {
-                if (!kids.contains(kid)) {
+                if (seenKids.add(kid)) {
                     kids.add(kid);
                 }
             }
@@ -290,4 +317,262 @@ public final class PDFBoxAdapterUtil {
 
         return page;
     }
+
+    /**
+     * The hash of an object. A cache key is the hash code of a string describing the object and, in place of the
+     * objects it contains, their strings; it's kept as hash code and length of that string, from which the hash
+     * code of a concatenation follows. A content digest instead describes the contained objects by their digests.
+     */
+    static final class Hash {
+        private final int code;
+        private final long length;
+        private final String text;
+
+        private Hash(int code, long length, String text) {
+            this.code = code;
+            this.length = length;
+            this.text = text;
+        }
+
+        static Hash of(String s, MessageDigest md) {
+            return md != null ? new Hash(0, 0, s) : new Hash(s.hashCode(), s.length(), null);
+        }
+    }
+
+    /**
+     * Walks the objects contained in an object to hash it. The dictionaries, arrays and indirect objects still
+     * waiting for the hashes of their entries are kept on a work stack rather than recursed into, so deeply nested
+     * objects can't overflow the stack. An object reached again while it's on the stack is described by its hash
+     * code, so the hash of the objects from which it's reachable depends on where the walk started; only the other
+     * hashes are added to the memo.
+     */
+    private static final class HashWalk {
+        private final MessageDigest md;
+        private final Map<COSBase, Hash> memo;
+        private final Map<COSBase, Hash> objs = new HashMap<COSBase, Hash>();
+        private final Set<COSBase> open = Collections.newSetFromMap(new IdentityHashMap<COSBase, Boolean>());
+        private final Set<COSBase> dirty = Collections.newSetFromMap(new IdentityHashMap<COSBase, Boolean>());
+        private final Deque<HashFrame> stack = new ArrayDeque<HashFrame>();
+
+        HashWalk(MessageDigest md, Map<COSBase, Hash> memo) {
+            this.md = md;
+            this.memo = md == null ? memo : null;
+        }
+
+        Hash hash(COSBase base) throws IOException {
+            Hash hash = visit(base);
+            while (!stack.isEmpty()) {
+                HashFrame frame = stack.peek();
+                if (frame.hasNext()) {
+                    Hash value = visit(frame.next());
+                    if (value != null) {
+                        frame.add(value);
+                    }
+                    continue;
+                }
+                stack.pop();
+                open.remove(frame.base);
+                hash = frame.finish(md);
+                objs.put(frame.base, hash);
+                if (frame.dirty) {
+                    dirty.add(frame.base);
+                } else if (memo != null) {
+                    memo.put(frame.base, hash);
+                }
+                if (!stack.isEmpty()) {
+                    stack.peek().dirty |= frame.dirty;
+                    stack.peek().add(hash);
+                }
+            }
+            return hash;
+        }
+
+        /**
+         * Returns the hash of an object if it's known or has no entries, otherwise pushes the object on the work
+         * stack and returns null.
+         */
+        private Hash visit(COSBase base) {
+            if (base == null) {
+                return Hash.of("null", md);
+            }
+            Hash hash = objs.get(base);
+            if (hash != null) {
+                if (open.contains(base) || dirty.contains(base)) {
+                    stack.peek().dirty = true;
+                }
+                return hash;
+            }
+            if (memo != null) {
+                hash = memo.get(base);
+                if (hash != null) {
+                    return hash;
+                }
+            }
+            if (base instanceof COSDictionary || base instanceof COSObject || base instanceof COSArray) {
+                objs.put(base, Hash.of(String.valueOf(base.hashCode()), md));
+                open.add(base);
+                stack.push(new HashFrame(base, md));
+                return null;
+            }
+            hash = Hash.of(base.toString(), md);
+            objs.put(base, hash);
+            return hash;
+        }
+    }
+
+    /**
+     * A dictionary, array or indirect object whose entries are being hashed.
+     */
+    private static final class HashFrame {
+        private final COSBase base;
+        private final Iterator<Map.Entry<COSName, COSBase>> entries;
+        private final Map<COSName, Hash> values;
+        private final Iterator<COSBase> items;
+        private final HashBuilder hash;
+        private COSName key;
+        private COSBase next;
+        private boolean objectLeft;
+        /** Whether the hash depends on an object on the stack, i.e. on where the walk started. */
+        private boolean dirty;
+
+        HashFrame(COSBase base, MessageDigest md) {
+            this.base = base;
+            hash = new HashBuilder(md);
+            if (base instanceof COSDictionary) {
+                entries = ((COSDictionary) base).entrySet().iterator();
+                values = new HashMap<COSName, Hash>();
+                items = null;
+                hash.append("COSDictionary{");
+            } else if (base instanceof COSArray) {
+                entries = null;
+                values = null;
+                items = ((COSArray) base).iterator();
+                hash.append("COSArray[");
+            } else {
+                entries = null;
+                values = null;
+                items = null;
+                next = ((COSObject) base).getObject();
+                objectLeft = true;
+                hash.append("COSObject{");
+            }
+        }
+
+        /**
+         * Returns whether an entry is left to hash. Array items other than streams are described by their string
+         * on the way.
+         */
+        boolean hasNext() {
+            if (entries != null) {
+                return entries.hasNext();
+            }
+            if (items != null) {
+                while (items.hasNext()) {
+                    COSBase o = items.next();
+                    if (o instanceof COSObject && ((COSObject) o).getObject() instanceof COSStream) {
+                        next = ((COSObject) o).getObject();
+                        return true;
+                    }
+                    hash.append(String.valueOf(o)).append(",");
+                }
+                return false;
+            }
+            return objectLeft;
+        }
+
+        COSBase next() {
+            if (entries != null) {
+                Map.Entry<COSName, COSBase> entry = entries.next();
+                key = entry.getKey();
+                return entry.getValue();
+            }
+            objectLeft = false;
+            return next;
+        }
+
+        void add(Hash value) {
+            if (values != null) {
+                values.put(key, value);
+            } else if (items != null) {
+                hash.append(value).append(",");
+            } else {
+                hash.append(value);
+            }
+        }
+
+        Hash finish(MessageDigest md) throws IOException {
+            if (values != null) {
+                for (Map.Entry<COSName, Hash> entry : new TreeMap<COSName, Hash>(values).entrySet()) {
+                    hash.append(entry.getKey().toString()).append(":").append(entry.getValue()).append(";");
+                }
+                hash.append("}");
+                if (base instanceof COSStream && ((COSStream) base).hasData()) {
+                    InputStream stream = ((COSStream) base).createRawInputStream();
+                    byte[] b = IOUtils.toByteArray(stream);
+                    String data = md != null ? toHex(md.digest(b)) : String.valueOf(Arrays.hashCode(b));
+                    hash.append("COSStream{").append(data).append("}");
+                }
+            } else {
+                hash.append(items != null ? "]" : "}");
+            }
+            return hash.toHash();
+        }
+    }
+
+    /**
+     * Combines the strings and hashes describing an object into its hash.
+     */
+    private static final class HashBuilder {
+        private final MessageDigest md;
+        private final StringBuilder text;
+        private int code;
+        private long length;
+
+        HashBuilder(MessageDigest md) {
+            this.md = md;
+            text = md != null ? new StringBuilder() : null;
+        }
+
+        HashBuilder append(String s) {
+            if (text != null) {
+                text.append(s);
+            } else {
+                append(s.hashCode(), s.length());
+            }
+            return this;
+        }
+
+        HashBuilder append(Hash hash) {
+            if (text != null) {
+                text.append(hash.text);
+            } else {
+                append(hash.code, hash.length);
+            }
+            return this;
+        }
+
+        /**
+         * Appends a string by its hash code: the hash code of a concatenation a + b is
+         * hash(a) * 31^length(b) + hash(b), the same as {@link String#hashCode()} of the concatenated string.
+         */
+        private void append(int hashCode, long count) {
+            int factor = 1;
+            int power = 31;
+            for (long n = count; n > 0; n >>= 1) {
+                if ((n & 1) != 0) {
+                    factor *= power;
+                }
+                power *= power;
+            }
+            code = code * factor + hashCode;
+            length += count;
+        }
+
+        Hash toHash() {
+            if (text != null) {
+                return new Hash(0, 0, toHex(md.digest(text.toString().getBytes(StandardCharsets.UTF_8))));
+            }
+            return new Hash(code, length, null);
+        }
+    }
 }
@@ -72,6 +72,15 @@ interface PDFBoxEventProducer extends EventProducer {
      */
     void pdfXActive(Object source);
 
+    /**
+     * A range of pages can't be imported into a tagged PDF, as the imported pages aren't tagged.
+     *
+     * @param source the event source
+     * @param uri the URI of the PDF
+     * @event.severity ERROR
+     */
+    void pageRangeNotTagged(Object source, String uri);
+
     /**
      * Glyph data missing
      *
@@ -22,6 +22,8 @@ package org.apache.fop.render.pdf.pdfbox;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,7 +31,9 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.xmlgraphics.image.loader.Image;
 import org.apache.xmlgraphics.image.loader.ImageFlavor;
 
+import org.apache.fop.apps.FOUserAgent;
 import org.apache.fop.fonts.FontInfo;
+import org.apache.fop.pdf.PDFArray;
 import org.apache.fop.pdf.PDFPage;
 import org.apache.fop.pdf.PDFXObject;
 import org.apache.fop.render.ImageHandler;
@@ -96,6 +100,30 @@ public class PDFBoxImageHandler extends AbstractPDFBoxHandler implements ImageHa
         }
     }
 
+    /**
+     * Imports a contiguous range of pages of a PDF in one pass, e.g. to include a whole document without an
+     * external-graphic per page. Resources, fonts, annotations and catalog entries shared by the pages are
+     * cloned once for the range. The content of each page is returned for the caller to place on its target page:
+     * a String with the page's content stream or, if Form XObjects are enabled, a {@link PDFXObject}.
+     * @param image the source PDF
+     * @param firstPage the zero-based index of the first page to import
+     * @param lastPage the zero-based index of the last page to import
+     * @param targetPages the target pages, one for each page of the range
+     * @param userAgent the user agent, not null
+     * @param fontinfo fonts, may be null unless fonts are merged
+     * @param usedFieldNames form field names used in the target document so far
+     * @param pageNumbers references to page object numbers
+     * @return the content of each target page, or null if the document can't be imported or accessibility is
+     * enabled, as the imported pages aren't tagged
+     * @throws IOException if an I/O error occurs
+     */
+    public List<Object> importPages(ImagePDF image, int firstPage, int lastPage, List<PDFPage> targetPages,
+                                    FOUserAgent userAgent, FontInfo fontinfo, Map<String, Object> usedFieldNames,
+                                    Map<Integer, PDFArray> pageNumbers) throws IOException {
+        return createStreamsForPDF(image, firstPage, lastPage, targetPages, userAgent, fontinfo, usedFieldNames,
+                pageNumbers);
+    }
+
     /** {@inheritDoc} */
     public boolean isCompatible(RenderingContext targetContext, Image image) {
         return (image == null || image instanceof ImagePDF)
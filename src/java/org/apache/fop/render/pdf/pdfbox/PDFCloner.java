@@ -21,8 +21,12 @@ package org.apache.fop.render.pdf.pdfbox;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -72,11 +76,33 @@ public class PDFCloner {
         return cloneForNewDocument(base, keyBase, Collections.EMPTY_LIST);
     }
 
+    /**
+     * Clones an object and everything it refers to. Arrays and dictionaries are filled from a work stack rather
+     * than by recursion, so deeply nested structures (e.g. outlines or structure trees) can't overflow the stack.
+     * Objects are visited in the same order as they would be recursively, so they get the same object numbers.
+     */
     protected Object cloneForNewDocument(Object base, Object keyBase, Collection exclude) throws IOException {
+        adapter.startClone();
+        try {
+            Deque<PendingEntries> pending = new ArrayDeque<PendingEntries>();
+            Object clone = cloneObject(base, keyBase, exclude, pending, true);
+            while (!pending.isEmpty()) {
+                if (!cloneNextEntry(pending.peek(), pending)) {
+                    pending.pop();
+                }
+            }
+            return clone;
+        } finally {
+            adapter.endClone();
+        }
+    }
+
+    private Object cloneObject(Object base, Object keyBase, Collection exclude, Deque<PendingEntries> pending,
+                               boolean lookup) throws IOException {
         if (base == null) {
             return null;
         }
-        Object cached = adapter.getCachedClone(keyBase);
+        Object cached = lookup ? adapter.getCachedClone(keyBase) : null;
         if (cached != null) {
             // we are done, it has already been converted.
             return cached;
@@ -85,27 +111,19 @@ public class PDFCloner {
             Object retval = cloneForNewDocument(o, o, exclude);
             return cacheClonedObject(keyBase, retval);
         } else if (base instanceof COSObject) {
-            return readCOSObject((COSObject) base, exclude);
+            return readCOSObject((COSObject) base, keyBase, exclude, pending);
         } else if (base instanceof COSArray) {
             PDFArray newArray = new PDFArray();
             cacheClonedObject(keyBase, newArray);
-            COSArray array = (COSArray)base;
-            for (int i = 0; i < array.size(); i++) {
-                newArray.add(cloneForNewDocument(array.get(i), array.get(i), exclude));
-            }
+            pending.push(new PendingEntries(newArray, (COSArray) base, exclude));
             return newArray;
-//        } else if (base instanceof COSStreamArray) {
-//            COSStreamArray array = (COSStreamArray)base;
-//            PDFArray newArray = new PDFArray();
-//            cacheClonedObject(keyBase, newArray);
-//            for (int i = 0, c = array.getStreamCount(); i < c; i++) {
-//                newArray.add(cloneForNewDocument(array.get(i)));
-//            }
-//            return newArray;
         } else if (base instanceof COSStream) {
             return readCOSStream((COSStream) base, keyBase);
         } else if (base instanceof COSDictionary) {
-            return readCOSDictionary((COSDictionary) base, keyBase, exclude);
+            PDFDictionary newDict = new PDFDictionary();
+            cacheClonedObject(keyBase, newDict);
+            pending.push(new PendingEntries(newDict, (COSDictionary) base, exclude));
+            return newDict;
         } else if (base instanceof COSName) {
             PDFName newName = new PDFName(((COSName)base).getName());
             return cacheClonedObject(keyBase, newName);
@@ -134,8 +152,10 @@ public class PDFCloner {
         }
     }
 
-    protected Object readCOSObject(COSObject object, Collection exclude) throws IOException {
-        Object obj = cloneForNewDocument(object.getObject(), object, exclude);
+    private Object readCOSObject(COSObject object, Object keyBase, Collection exclude,
+                                 Deque<PendingEntries> pending) throws IOException {
+        //the object itself was just looked up unless it's cloned under a different key
+        Object obj = cloneObject(object.getObject(), object, exclude, pending, keyBase != object);
         if (obj instanceof PDFObject) {
             PDFObject pdfobj = (PDFObject)obj;
             //pdfDoc.registerObject(pdfobj);
@@ -146,19 +166,32 @@ public class PDFCloner {
         return obj;
     }
 
-    private PDFDictionary readCOSDictionary(COSDictionary dic, Object keyBase, Collection exclude) throws IOException {
-        PDFDictionary newDict = new PDFDictionary();
-        cacheClonedObject(keyBase, newDict);
-        for (Map.Entry<COSName, COSBase> e : dic.entrySet()) {
-            if (!exclude.contains(e.getKey())) {
+    /**
+     * Clones the next entry of an array or dictionary.
+     * @return false if there are no more entries
+     */
+    private boolean cloneNextEntry(PendingEntries entries, Deque<PendingEntries> pending) throws IOException {
+        if (entries.array != null) {
+            if (entries.index >= entries.array.size()) {
+                return false;
+            }
+            COSBase item = entries.array.get(entries.index++);
+            ((PDFArray) entries.target).add(cloneObject(item, item, entries.exclude, pending, true));
+            return true;
+        }
+        while (entries.dictionary.hasNext()) {
+            Map.Entry<COSName, COSBase> e = entries.dictionary.next();
+            if (!entries.exclude.contains(e.getKey())) {
                 String name = e.getKey().getName();
                 if (adapter.uniqueName != null) {
                     name = adapter.uniqueName.getName(e.getKey());
                 }
-                newDict.put(name, cloneForNewDocument(e.getValue(), e.getValue(), exclude));
+                ((PDFDictionary) entries.target).put(name,
+                        cloneObject(e.getValue(), e.getValue(), entries.exclude, pending, true));
+                return true;
             }
         }
-        return newDict;
+        return false;
     }
 
     private Object readCOSString(COSString string, Object keyBase) throws IOException {
@@ -179,13 +212,13 @@ public class PDFCloner {
     }
 
     private Object readCOSStream(COSStream originalStream, Object keyBase) throws IOException {
-        InputStream in;
-        Set filter;
+        InputStream in = null;
+        Set filter = Collections.EMPTY_SET;
+        boolean decode = false;
         PDFStream stream = new PDFStream();
         if (adapter.pdfDoc.isEncryptionActive() && isDctDecodeFilter(originalStream.getItem(COSName.FILTER))) {
             stream.getFilterList().addFilter(new DCTFilter());
             in = originalStream.createRawInputStream();
-            filter = Collections.EMPTY_SET;
         } else if (adapter.pdfDoc.isEncryptionActive()
                     && isDctAndFlateDecodeFilter(originalStream.getItem(COSName.FILTER))) {
             in = originalStream.createRawInputStream();
@@ -195,47 +228,96 @@ public class PDFCloner {
             flateFilter.decode(in, out, originalStream, 0);
             IOUtils.closeQuietly(in);
             IOUtils.closeQuietly(out);
+            adapter.sourceStreamChanged();
 
             stream.getFilterList().addFilter(new DCTFilter());
             stream.getFilterList().addFilter(new FlateFilter());
 
             in = originalStream.createRawInputStream();
-            filter = Collections.EMPTY_SET;
         } else if (adapter.pdfDoc.isEncryptionActive()
                 || (originalStream.containsKey(COSName.DECODE_PARMS) && !originalStream.containsKey(COSName.FILTER))) {
-            in = originalStream.createInputStream();
+            decode = true;
             filter = adapter.FILTER_FILTER;
-        } else {
-            //transfer encoded data (don't reencode)
-            in = originalStream.createRawInputStream();
-            filter = Collections.EMPTY_SET;
         }
+        //otherwise transfer encoded data (don't reencode)
 
-        OutputStream out = stream.getBufferOutputStream();
-        if ((originalStream.getItem(COSName.TYPE) == COSName.PATTERN
-                || originalStream.getItem(COSName.SUBTYPE) == COSName.FORM) && adapter.uniqueName != null) {
+        boolean rewritable = originalStream.getItem(COSName.TYPE) == COSName.PATTERN
+                || originalStream.getItem(COSName.SUBTYPE) == COSName.FORM;
+        boolean written = false;
+        if (rewritable && adapter.uniqueName != null) {
             PDFWriter writer = new PDFWriter(adapter.uniqueName, adapter.currentMCID);
             try {
                 String newStream = writer.writeText(new PDStream(originalStream));
                 if (writer.keyUsed) {
                     filter = adapter.FILTER_FILTER;
                     byte[] bytes = newStream.getBytes(PDFDocument.ENCODING);
+                    OutputStream out = stream.getBufferOutputStream();
                     out.write(bytes);
                     out.close();
                     try (OutputStream originalStreamOS = originalStream.createOutputStream()) {
                         originalStreamOS.write(bytes);
                     }
-                    in = null;
+                    adapter.sourceStreamChanged();
+                    written = true;
                 }
             } catch (IOException e) {
                 //ignore
             }
         }
-        if (in != null) {
-            IOUtils.copyLarge(in, out);
+        if (written) {
+            IOUtils.closeQuietly(in);
+        } else if (in == null && !rewritable && keyBase instanceof COSObject && adapter.sourceDoc != null
+                && SourcePDFStream.isEnabled()) {
+            //images and fonts, whose data isn't changed by later imports, are copied when the target is written
+            stream = new SourcePDFStream(adapter.sourceDoc, originalStream, decode);
+        } else {
+            if (in == null) {
+                in = decode ? originalStream.createInputStream() : originalStream.createRawInputStream();
+            }
+            try {
+                IOUtils.copyLarge(in, stream.getBufferOutputStream());
+            } finally {
+                in.close();
+            }
         }
         adapter.transferDict(originalStream, stream, filter);
-        return cacheClonedObject(keyBase, stream);
+        //only pattern and form streams are changed by later imports
+        return cacheClonedObject(keyBase, stream, !rewritable && keyBase instanceof COSObject);
+    }
+
+    /**
+     * Clones a form XObject with an identity /Matrix, for a placement that applies the transformation itself, e.g.
+     * an appearance of an annotation on a rotated page. The clone isn't cached, since the cached clone keeps the
+     * source matrix. The stream has to be cloned with {@link #cloneForNewDocument} first, which renames the
+     * resources used in its content, so the content copied here matches its cloned resources.
+     * @param originalStream the source stream
+     * @return the clone
+     * @throws IOException if the stream can't be read
+     */
+    PDFStream cloneWithIdentityMatrix(COSStream originalStream) throws IOException {
+        Set<String> filter = new HashSet<String>();
+        filter.add(COSName.MATRIX.getName());
+        boolean decode = adapter.pdfDoc.isEncryptionActive()
+                || (originalStream.containsKey(COSName.DECODE_PARMS) && !originalStream.containsKey(COSName.FILTER));
+        if (decode) {
+            filter.addAll(adapter.FILTER_FILTER);
+        }
+        PDFStream stream = new PDFStream();
+        try (InputStream in = decode ? originalStream.createInputStream() : originalStream.createRawInputStream()) {
+            IOUtils.copyLarge(in, stream.getBufferOutputStream());
+        }
+        adapter.transferDict(originalStream, stream, filter);
+        PDFArray matrix = new PDFArray();
+        for (double value : new double[] {1, 0, 0, 1, 0, 0}) {
+            matrix.add(value);
+        }
+        stream.put(COSName.MATRIX.getName(), matrix);
+        if (trailer) {
+            adapter.pdfDoc.registerTrailerObject(stream);
+        } else {
+            adapter.pdfDoc.registerObject(stream);
+        }
+        return stream;
     }
 
     private boolean isDctDecodeFilter(COSBase filterItem) {
@@ -259,7 +341,11 @@ public class PDFCloner {
     }
 
     protected Object cacheClonedObject(Object base, Object cloned) throws IOException {
-        Object key = PDFBoxAdapterUtil.getBaseKey(base);
+        return cacheClonedObject(base, cloned, false);
+    }
+
+    private Object cacheClonedObject(Object base, Object cloned, boolean replaceable) throws IOException {
+        Object key = adapter.getBaseKey(base);
         if (key == null) {
             return cloned;
         }
@@ -274,7 +360,40 @@ public class PDFCloner {
         adapter.clonedVersion.put(key, cloned);
         if (key instanceof Integer) {
             adapter.objectCache.put(key, cloned);
+            COSStream stream = (COSStream) ((COSObject) base).getObject();
+            if (pdfobj != null && pdfobj.hasObjectNumber() && StreamRegistry.isRegistered(stream)) {
+                adapter.getImportState().streamRegistry.register(adapter.getContentDigest(stream), pdfobj);
+            }
+        }
+        if (adapter.tracker != null) {
+            adapter.tracker.cached(adapter.clonedVersion, key instanceof Integer ? adapter.objectCache : null, key,
+                    replaceable);
         }
         return cloned;
     }
+
+    /**
+     * The entries of a source array or dictionary still to be cloned into its clone.
+     */
+    private static final class PendingEntries {
+        private final Object target;
+        private final COSArray array;
+        private final Iterator<Map.Entry<COSName, COSBase>> dictionary;
+        private final Collection exclude;
+        private int index;
+
+        PendingEntries(PDFArray target, COSArray array, Collection exclude) {
+            this.target = target;
+            this.array = array;
+            this.dictionary = null;
+            this.exclude = exclude;
+        }
+
+        PendingEntries(PDFDictionary target, COSDictionary dictionary, Collection exclude) {
+            this.target = target;
+            this.array = null;
+            this.dictionary = dictionary.entrySet().iterator();
+            this.exclude = exclude;
+        }
+    }
 }
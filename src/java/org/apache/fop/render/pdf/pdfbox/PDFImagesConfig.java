@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.Map;
+
+/**
+ * Optional settings of the PDF images plugin. A setting is looked up in the given options (image hints or
+ * renderer options) under its full name and then as a system property of the same name.
+ */
+final class PDFImagesConfig {
+
+    /** Prefix of all setting names. */
+    static final String PREFIX = "org.apache.fop.render.pdf.pdfbox.";
+
+    /** Reads only the page geometry when preloading and parses a PDF once its page is actually needed. */
+    static final String DEFERRED_LOADING = PREFIX + "deferred-loading";
+
+    /** File of the on-disk index of the page geometry of source PDFs, see {@link PageGeometryIndex}. */
+    static final String GEOMETRY_INDEX = PREFIX + "geometry-index";
+
+    /** Parses source PDFs whose parsing is deferred in the background, see {@link DocumentPrefetcher}. */
+    static final String PREFETCH = PREFIX + "prefetch";
+
+    /** Cap on the megabytes of source PDFs being prefetched or prefetched but not yet used. */
+    static final String PREFETCH_MAX_MB = PREFIX + "prefetch-max-mb";
+
+    /** Copies the data of cloned streams from the source PDF when the target PDF is written, not when cloned. */
+    static final String LAZY_STREAMS = PREFIX + "lazy-streams";
+
+    /** Releases the plug-in's references to objects cloned for a page once the next page is started. */
+    static final String RELEASE_CLONES = PREFIX + "release-clones";
+
+    /** Leaves out the resources of an imported page that its content doesn't use, see {@link ResourcePruner}. */
+    static final String PRUNE_RESOURCES = PREFIX + "prune-resources";
+
+    /** Makes source pages placed more than once into a Form XObject shared by their placements. */
+    static final String ADAPTIVE_FORM_XOBJECTS = PREFIX + "adaptive-form-xobjects";
+
+    private PDFImagesConfig() { }
+
+    static String get(Map<?, ?> options, String name) {
+        Object value = options != null ? options.get(name) : null;
+        if (value != null) {
+            return value.toString();
+        }
+        try {
+            return System.getProperty(name);
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    static boolean isEnabled(Map<?, ?> options, String name) {
+        return Boolean.parseBoolean(get(options, name));
+    }
+
+    static int getInt(Map<?, ?> options, String name, int defaultValue) {
+        String value = get(options, name);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+        return defaultValue;
+    }
+}
@@ -96,17 +96,14 @@ public class PDFString extends PDFObject {
                 }
             }
             try {
-                byte[] binary;
                 if (unicode16) {
                     byte[] data = this.text.getBytes(StandardCharsets.UTF_16BE);
-                    binary = new byte[data.length + 2];
-                    binary[0] = (byte)0xFE;
-                    binary[1] = (byte)0xFF;
-                    System.arraycopy(data, 0, binary, 2, data.length);
+                    this.binary = new byte[data.length + 2];
+                    this.binary[0] = (byte)0xFE;
+                    this.binary[1] = (byte)0xFF;
+                    System.arraycopy(data, 0, this.binary, 2, data.length);
                 } else {
-                    byte[] data = this.text.getBytes(PDFDocument.ENCODING);
-                    binary = new byte[data.length];
-                    System.arraycopy(data, 0, binary, 0, data.length);
+                    this.binary = this.text.getBytes(PDFDocument.ENCODING);
                 }
             } catch (UnsupportedEncodingException e) {
                 throw new RuntimeException("Incompatible JVM: " + e.getMessage());
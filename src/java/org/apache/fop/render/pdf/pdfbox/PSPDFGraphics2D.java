@@ -35,8 +35,13 @@ import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
 import java.awt.image.ImageObserver;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
@@ -47,7 +52,15 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.pdfbox.cos.COSArray;
@@ -89,7 +102,15 @@ import org.apache.fop.render.ps.PSDocumentHandler;
 import org.apache.fop.render.ps.PSImageUtils;
 
 public class PSPDFGraphics2D extends PSGraphics2D {
+    private static final int OPAQUE_WHITE = Color.white.getRGB();
+    private static final int OPAQUE_BLACK = Color.black.getRGB();
+    private static final int FOUND_WHITE = 1;
+    private static final int FOUND_BLACK = 2;
+    /** Images with more pixels than this are scanned in parallel bands. */
+    private static final int PARALLEL_PIXEL_THRESHOLD = 1 << 20;
+
     private boolean clearRect;
+    private ShadingCache shadingCache = new ShadingCache();
 
     public PSPDFGraphics2D(boolean textAsShapes) {
         super(textAsShapes);
@@ -97,6 +118,9 @@ public class PSPDFGraphics2D extends PSGraphics2D {
 
     public PSPDFGraphics2D(PSGraphics2D g) {
         super(g);
+        if (g instanceof PSPDFGraphics2D) {
+            shadingCache = ((PSPDFGraphics2D) g).shadingCache;
+        }
     }
 
     public PSPDFGraphics2D(boolean textAsShapes, PSGenerator gen) {
@@ -120,53 +144,22 @@ public class PSPDFGraphics2D extends PSGraphics2D {
     protected void applyPaint(Paint paint, boolean fill) {
         preparePainting();
         if (paint instanceof AxialShadingPaint || paint instanceof RadialShadingPaint) {
-            PaintContext paintContext = paint.createContext(null, new Rectangle(), null, new AffineTransform(),
-                    getRenderingHints());
-            int deviceColorSpace = PDFDeviceColorSpace.DEVICE_RGB;
-            if (paintContext instanceof ShadingContext) {
-                PDColorSpace pdcs = getShadingColorSpace((ShadingContext) paintContext);
-                if (pdcs instanceof PDDeviceCMYK) {
-                    deviceColorSpace = PDFDeviceColorSpace.DEVICE_CMYK;
-                } else if (pdcs instanceof PDDeviceGray) {
-                    deviceColorSpace = PDFDeviceColorSpace.DEVICE_GRAY;
-                }
-            }
-            if (paint instanceof AxialShadingPaint) {
-                try {
-                    AxialShadingContext asc = (AxialShadingContext) paintContext;
-                    float[] fCoords = asc.getCoords();
-                    transformCoords(fCoords, (ShadingPaint) paint, true);
-                    PDFunction function = asc.getFunction();
-                    Function targetFT = getFunction(function);
-                    if (targetFT != null) {
-                        if (targetFT.getFunctions().size() == 5
-                                && targetFT.getFunctions().get(0).getFunctionType() == 0) {
-                            return;
-                        }
-                        List<Double> dCoords = floatArrayToDoubleList(fCoords);
-                        PDFDeviceColorSpace colSpace = new PDFDeviceColorSpace(deviceColorSpace);
-                        Shading shading = new Shading(2, colSpace, dCoords, targetFT);
-                        Pattern pattern = new Pattern(2, shading, null);
-                        gen.write(Gradient.outputPattern(pattern, doubleFormatter));
-                    }
-                } catch (IOException ioe) {
-                    handleIOException(ioe);
+            ShadingPaint<?> shadingPaint = (ShadingPaint<?>) paint;
+            List<Object> key = Arrays.<Object>asList(shadingPaint.getShading().getCOSObject(),
+                    shadingPaint.getMatrix().createAffineTransform());
+            try {
+                String name;
+                if (shadingCache.patterns.containsKey(key)) {
+                    name = shadingCache.patterns.get(key);
+                } else {
+                    name = definePattern(createPattern(paint));
+                    shadingCache.patterns.put(key, name);
                 }
-            } else if (paint instanceof RadialShadingPaint) {
-                try {
-                    RadialShadingContext rsc = (RadialShadingContext) paintContext;
-                    float[] fCoords = rsc.getCoords();
-                    transformCoords(fCoords, (ShadingPaint) paint, false);
-                    PDFunction function = rsc.getFunction();
-                    Function targetFT3 = getFunction(function);
-                    List<Double> dCoords = floatArrayToDoubleList(fCoords);
-                    PDFDeviceColorSpace colSpace = new PDFDeviceColorSpace(deviceColorSpace);
-                    Shading shading = new Shading(3, colSpace, dCoords, targetFT3);
-                    Pattern pattern = new Pattern(2, shading, null);
-                    gen.write(Gradient.outputPattern(pattern, doubleFormatter));
-                } catch (IOException ioe) {
-                    handleIOException(ioe);
+                if (name != null) {
+                    gen.writeln(name);
                 }
+            } catch (IOException ioe) {
+                handleIOException(ioe);
             }
         } else if (paint.getClass().getSimpleName().equals("TilingPaint")) {
             TexturePaint texturePaint = (TexturePaint) getField(paint, "paint");
@@ -177,6 +170,62 @@ public class PSPDFGraphics2D extends PSGraphics2D {
         }
     }
 
+    private String createPattern(Paint paint) throws IOException {
+        PaintContext paintContext = paint.createContext(null, new Rectangle(), null, new AffineTransform(),
+                getRenderingHints());
+        int deviceColorSpace = PDFDeviceColorSpace.DEVICE_RGB;
+        if (paintContext instanceof ShadingContext) {
+            PDColorSpace pdcs = getShadingColorSpace((ShadingContext) paintContext);
+            if (pdcs instanceof PDDeviceCMYK) {
+                deviceColorSpace = PDFDeviceColorSpace.DEVICE_CMYK;
+            } else if (pdcs instanceof PDDeviceGray) {
+                deviceColorSpace = PDFDeviceColorSpace.DEVICE_GRAY;
+            }
+        }
+        PDFDeviceColorSpace colSpace = new PDFDeviceColorSpace(deviceColorSpace);
+        if (paint instanceof AxialShadingPaint) {
+            AxialShadingContext asc = (AxialShadingContext) paintContext;
+            float[] fCoords = asc.getCoords();
+            transformCoords(fCoords, (ShadingPaint) paint, true);
+            Function targetFT = getFunction(asc.getFunction(), shadingCache.functions);
+            if (targetFT == null || (targetFT.getFunctions().size() == 5
+                    && targetFT.getFunctions().get(0).getFunctionType() == 0)) {
+                return null;
+            }
+            Shading shading = new Shading(2, colSpace, floatArrayToDoubleList(fCoords), targetFT);
+            return Gradient.outputPattern(new Pattern(2, shading, null), doubleFormatter);
+        }
+        RadialShadingContext rsc = (RadialShadingContext) paintContext;
+        float[] fCoords = rsc.getCoords();
+        transformCoords(fCoords, (ShadingPaint) paint, false);
+        Function targetFT3 = getFunction(rsc.getFunction(), shadingCache.functions);
+        Shading shading = new Shading(3, colSpace, floatArrayToDoubleList(fCoords), targetFT3);
+        return Gradient.outputPattern(new Pattern(2, shading, null), doubleFormatter);
+    }
+
+    /**
+     * Writes the pattern once as a named procedure so repeated fills with the same shading only reference it.
+     * The procedure runs makepattern at the point of use, so the current transform still applies.
+     */
+    private String definePattern(String pattern) throws IOException {
+        if (pattern == null) {
+            return null;
+        }
+        String name = "FOPPDFPattern" + shadingCache.patterns.size();
+        gen.writeln("/" + name + " {");
+        gen.write(pattern);
+        gen.writeln("} def");
+        return name;
+    }
+
+    /**
+     * Converted functions and defined shading patterns, shared with copies of this graphics object.
+     */
+    private static final class ShadingCache {
+        private final Map<COSBase, Function> functions = new IdentityHashMap<COSBase, Function>();
+        private final Map<List<Object>, String> patterns = new HashMap<List<Object>, String>();
+    }
+
     private PDColorSpace getShadingColorSpace(ShadingContext shadingContext) {
         try {
             Field field = ShadingContext.class.getDeclaredField("shadingColorSpace");
@@ -256,13 +305,27 @@ public class PSPDFGraphics2D extends PSGraphics2D {
     }
 
     protected static Function getFunction(PDFunction f) throws IOException {
+        return getFunction(f, new IdentityHashMap<COSBase, Function>());
+    }
+
+    private static Function getFunction(PDFunction f, Map<COSBase, Function> converted) throws IOException {
+        COSBase key = f.getCOSObject();
+        if (converted.containsKey(key)) {
+            return converted.get(key);
+        }
+        Function function = convertFunction(f, converted);
+        converted.put(key, function);
+        return function;
+    }
+
+    private static Function convertFunction(PDFunction f, Map<COSBase, Function> converted) throws IOException {
         if (f instanceof PDFunctionType3) {
             PDFunctionType3 sourceFT3 = (PDFunctionType3) f;
             float[] bounds = sourceFT3.getBounds().toFloatArray();
             COSArray sourceFunctions = sourceFT3.getFunctions();
             List<Function> targetFunctions = new ArrayList<Function>();
             for (int j = 0; j < sourceFunctions.size(); j++) {
-                targetFunctions.add(getFunction(PDFunction.create(sourceFunctions.get(j))));
+                targetFunctions.add(getFunction(PDFunction.create(sourceFunctions.get(j)), converted));
             }
             float[] encode = sourceFT3.getEncode().toFloatArray();
             return new Function(null, null, targetFunctions, toList(bounds), floatArrayToDoubleList(encode));
@@ -398,40 +461,193 @@ public class PSPDFGraphics2D extends PSGraphics2D {
         return super.drawImage(img, x1, y1, observer, mask);
     }
 
-    private Image convertToRGB(Image img, Color mask) {
+    static Image convertToRGB(Image img, Color mask) {
         //convert when we use custom background color
         if (mask != Color.white) {
             BufferedImage rgbImg =
                     new BufferedImage(img.getWidth(null), img.getHeight(null), BufferedImage.TYPE_INT_RGB);
-            Graphics2D g = rgbImg.createGraphics();
-            g.setColor(mask);
-            g.fillRect(0, 0, rgbImg.getWidth(), rgbImg.getHeight());
-            g.drawImage(img, 0, 0, null);
-            g.dispose();
+            if (!(img instanceof BufferedImage) || !compositeOnto((BufferedImage) img, rgbImg, mask.getRGB())) {
+                Graphics2D g = rgbImg.createGraphics();
+                g.setColor(mask);
+                g.fillRect(0, 0, rgbImg.getWidth(), rgbImg.getHeight());
+                g.drawImage(img, 0, 0, null);
+                g.dispose();
+            }
             return rgbImg;
         }
         return img;
     }
 
-    private Color getMask(BufferedImage img) {
-        boolean black = false;
-        boolean white = false;
-        for (int i = 0; i < img.getWidth(); i++) {
-            for (int j = 0; j < img.getHeight(); j++) {
-                int rgb = img.getRGB(i, j);
-                if (rgb == Color.white.getRGB()) {
-                    white = true;
-                } else if (rgb == Color.black.getRGB()) {
-                    black = true;
+    static Color getMask(final BufferedImage img) {
+        final int[] argb = getIntPixels(img);
+        final byte[] abgr = argb == null ? getBytePixels(img) : null;
+        final AtomicBoolean stop = new AtomicBoolean();
+        int found;
+        if (argb == null && abgr == null) {
+            found = scanBand(img, null, null, 0, img.getHeight(), stop);
+        } else {
+            found = runBands(img.getWidth(), img.getHeight(), new Band() {
+                public int run(int fromRow, int toRow) {
+                    return scanBand(img, argb, abgr, fromRow, toRow, stop);
                 }
-            }
+            });
         }
-        if (white && !black) {
+        if ((found & FOUND_WHITE) != 0 && (found & FOUND_BLACK) == 0) {
             return Color.black;
         }
         return Color.white;
     }
 
+    /**
+     * Scans a band of rows for opaque white and black pixels. Once black is seen the mask can only be white, so
+     * the scan stops there and tells the other bands to stop as well.
+     */
+    private static int scanBand(BufferedImage img, int[] argb, byte[] abgr, int fromRow, int toRow,
+                                AtomicBoolean stop) {
+        int width = img.getWidth();
+        int found = 0;
+        for (int y = fromRow; y < toRow && !stop.get(); y++) {
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int rgb;
+                if (argb != null) {
+                    rgb = argb[offset + x];
+                } else if (abgr != null) {
+                    int i = (offset + x) * 4;
+                    rgb = (abgr[i] & 0xFF) << 24 | (abgr[i + 3] & 0xFF) << 16 | (abgr[i + 2] & 0xFF) << 8
+                            | (abgr[i + 1] & 0xFF);
+                } else {
+                    rgb = img.getRGB(x, y);
+                }
+                if (rgb == OPAQUE_WHITE) {
+                    found |= FOUND_WHITE;
+                } else if (rgb == OPAQUE_BLACK) {
+                    stop.set(true);
+                    return found | FOUND_BLACK;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Composites a non-premultiplied ARGB image onto an opaque background, writing straight into the
+     * destination's pixel array. Returns false if the source layout isn't one we can read directly.
+     */
+    private static boolean compositeOnto(BufferedImage src, BufferedImage dest, int background) {
+        final int[] argb = src.isAlphaPremultiplied() ? null : getIntPixels(src);
+        final byte[] abgr = argb != null || src.isAlphaPremultiplied() ? null : getBytePixels(src);
+        if (argb == null && abgr == null) {
+            return false;
+        }
+        final int[] rgb = ((DataBufferInt) dest.getRaster().getDataBuffer()).getData();
+        final int br = (background >> 16) & 0xFF;
+        final int bg = (background >> 8) & 0xFF;
+        final int bb = background & 0xFF;
+        final int width = src.getWidth();
+        runBands(width, src.getHeight(), new Band() {
+            public int run(int fromRow, int toRow) {
+                for (int i = fromRow * width, end = toRow * width; i < end; i++) {
+                    int a;
+                    int r;
+                    int g;
+                    int b;
+                    if (argb != null) {
+                        int p = argb[i];
+                        a = p >>> 24;
+                        r = (p >> 16) & 0xFF;
+                        g = (p >> 8) & 0xFF;
+                        b = p & 0xFF;
+                    } else {
+                        int j = i * 4;
+                        a = abgr[j] & 0xFF;
+                        b = abgr[j + 1] & 0xFF;
+                        g = abgr[j + 2] & 0xFF;
+                        r = abgr[j + 3] & 0xFF;
+                    }
+                    int na = 255 - a;
+                    rgb[i] = (mul8(a, r) + mul8(na, br)) << 16 | (mul8(a, g) + mul8(na, bg)) << 8
+                            | (mul8(a, b) + mul8(na, bb));
+                }
+                return 0;
+            }
+        });
+        return true;
+    }
+
+    private static int mul8(int a, int b) {
+        int t = a * b + 128;
+        return (t + (t >> 8)) >> 8;
+    }
+
+    private interface Band {
+        int run(int fromRow, int toRow);
+    }
+
+    /**
+     * Runs the given task over horizontal bands of the image, in parallel for large images, and ORs the results.
+     */
+    private static int runBands(int width, int height, final Band band) {
+        int bands = Math.min(height, Runtime.getRuntime().availableProcessors());
+        if ((long) width * height < PARALLEL_PIXEL_THRESHOLD || bands < 2) {
+            return band.run(0, height);
+        }
+        int rowsPerBand = (height + bands - 1) / bands;
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int from = 0; from < height; from += rowsPerBand) {
+            final int fromRow = from;
+            final int toRow = Math.min(height, from + rowsPerBand);
+            tasks.add(new Callable<Integer>() {
+                public Integer call() {
+                    return band.run(fromRow, toRow);
+                }
+            });
+        }
+        int result = 0;
+        for (Future<Integer> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+            try {
+                result |= future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return result;
+    }
+
+    private static int[] getIntPixels(BufferedImage img) {
+        int type = img.getType();
+        if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_ARGB_PRE)
+                && isContiguous(img.getRaster(), img.getWidth())) {
+            return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        }
+        return null;
+    }
+
+    private static byte[] getBytePixels(BufferedImage img) {
+        int type = img.getType();
+        if ((type == BufferedImage.TYPE_4BYTE_ABGR || type == BufferedImage.TYPE_4BYTE_ABGR_PRE)
+                && isContiguous(img.getRaster(), img.getWidth() * 4)) {
+            return ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+        }
+        return null;
+    }
+
+    private static boolean isContiguous(WritableRaster raster, int scanlineStride) {
+        SampleModel sm = raster.getSampleModel();
+        int stride = -1;
+        if (sm instanceof SinglePixelPackedSampleModel) {
+            stride = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+        } else if (sm instanceof ComponentSampleModel) {
+            stride = ((ComponentSampleModel) sm).getScanlineStride();
+        }
+        return stride == scanlineStride && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0 && raster.getDataBuffer().getOffset() == 0
+                && raster.getDataBuffer().getNumBanks() == 1;
+    }
+
     private BufferedImage getImage(int width, int height, Image img, ImageObserver observer) {
         Dimension size = new Dimension(width, height);
         BufferedImage buf = buildBufferedImage(size);
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageTree;
+
+/**
+ * Extracts a single page of a document into a standalone PDF. Only the objects reachable from the page are
+ * written; the page dictionary is copied shallowly and without its article beads so the source page tree is never
+ * pulled in, and streams keep their original encoding. The result is cached per document and page.
+ */
+final class PageExtractor {
+
+    private static final COSName[] INHERITED = {
+        COSName.RESOURCES, COSName.MEDIA_BOX, COSName.CROP_BOX, COSName.ROTATE
+    };
+    private static final COSName BEAD = COSName.getPDFName("B");
+    private static final COSName POPUP = COSName.getPDFName("Popup");
+    private static final COSName GOTO = COSName.getPDFName("GoTo");
+
+    private static final Map<PDDocument, Map<Integer, byte[]>> PAGES =
+            new WeakHashMap<PDDocument, Map<Integer, byte[]>>();
+
+    private PageExtractor() { }
+
+    /**
+     * Returns the given page as a standalone PDF document.
+     * @param doc the source document
+     * @param pageIndex the zero-based page index
+     * @return the PDF bytes
+     * @throws IOException if the page can't be written
+     */
+    static byte[] getPage(PDDocument doc, int pageIndex) throws IOException {
+        Map<Integer, byte[]> pages;
+        synchronized (PAGES) {
+            pages = PAGES.get(doc);
+            if (pages == null) {
+                pages = new HashMap<Integer, byte[]>();
+                PAGES.put(doc, pages);
+            }
+        }
+        synchronized (pages) {
+            byte[] pdf = pages.get(pageIndex);
+            if (pdf == null) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                synchronized (doc) {
+                    extract(doc, pageIndex, bos);
+                }
+                pdf = bos.toByteArray();
+                pages.put(pageIndex, pdf);
+            }
+            return pdf;
+        }
+    }
+
+    private static void extract(PDDocument doc, int pageIndex, ByteArrayOutputStream out) throws IOException {
+        COSDictionary srcPage = doc.getPage(pageIndex).getCOSObject();
+        COSDictionary page = new COSDictionary(srcPage);
+        page.removeItem(COSName.PARENT);
+        page.removeItem(BEAD);
+        for (COSName key : INHERITED) {
+            if (!page.containsKey(key)) {
+                COSBase value = PDPageTree.getInheritableAttribute(srcPage, key);
+                if (value != null) {
+                    page.setItem(key, value);
+                }
+            }
+        }
+        COSArray annots = page.getCOSArray(COSName.ANNOTS);
+        if (annots != null) {
+            page.setItem(COSName.ANNOTS, copyAnnotations(annots, srcPage, page));
+        }
+        try (PDDocument target = new PDDocument()) {
+            target.setVersion(doc.getVersion());
+            target.setDocumentInformation(doc.getDocumentInformation());
+            target.addPage(new PDPage(page));
+            target.save(out);
+        }
+    }
+
+    private static COSArray copyAnnotations(COSArray annots, COSDictionary srcPage, COSDictionary page) {
+        COSArray copy = new COSArray();
+        for (int i = 0; i < annots.size(); i++) {
+            COSBase base = annots.getObject(i);
+            if (!(base instanceof COSDictionary)) {
+                continue;
+            }
+            COSDictionary annot = new COSDictionary((COSDictionary) base);
+            annot.removeItem(COSName.P);
+            annot.removeItem(COSName.PARENT);
+            annot.removeItem(POPUP);
+            COSBase dest = annot.getDictionaryObject(COSName.DEST);
+            if (dest instanceof COSArray) {
+                retarget(annot, COSName.DEST, (COSArray) dest, srcPage, page);
+            }
+            COSBase action = annot.getDictionaryObject(COSName.A);
+            if (action instanceof COSDictionary && GOTO.equals(((COSDictionary) action).getCOSName(COSName.S))) {
+                COSBase actionDest = ((COSDictionary) action).getDictionaryObject(COSName.D);
+                if (actionDest instanceof COSArray) {
+                    COSDictionary actionCopy = new COSDictionary((COSDictionary) action);
+                    actionCopy.removeItem(COSName.NEXT);
+                    retarget(actionCopy, COSName.D, (COSArray) actionDest, srcPage, page);
+                    if (actionCopy.containsKey(COSName.D)) {
+                        annot.setItem(COSName.A, actionCopy);
+                    } else {
+                        annot.removeItem(COSName.A);
+                    }
+                }
+            }
+            copy.add(annot);
+        }
+        return copy;
+    }
+
+    /**
+     * Points an explicit destination on the extracted page at the copied page, and drops destinations to other
+     * pages since they would drag the whole source page tree into the output.
+     */
+    private static void retarget(COSDictionary dict, COSName key, COSArray dest, COSDictionary srcPage,
+                                 COSDictionary page) {
+        if (dest.size() > 0 && dest.getObject(0) instanceof COSDictionary) {
+            if (dest.getObject(0) == srcPage) {
+                COSArray copy = new COSArray();
+                copy.add(page);
+                for (int i = 1; i < dest.size(); i++) {
+                    copy.add(dest.get(i));
+                }
+                dict.setItem(key, copy);
+            } else {
+                dict.removeItem(key);
+            }
+        }
+    }
+}
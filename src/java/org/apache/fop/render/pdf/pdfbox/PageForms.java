@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.fop.pdf.PDFFormXObject;
+
+/**
+ * The source pages placed into a target document, by key, for reusing pages placed more than once as a Form
+ * XObject. The first placement of a page is inlined into the target page, the second one makes a Form XObject of
+ * the page which the later placements refer to, so a page placed many times (e.g. a letterhead) is written once.
+ * The pages are part of the {@link ImportState} of the target document.
+ */
+final class PageForms {
+
+    private final Set<String> placed = new HashSet<String>();
+    private final Map<String, PDFFormXObject> forms = new HashMap<String, PDFFormXObject>();
+
+    /**
+     * Returns the Form XObject of a page placed more than once.
+     * @param key the key of the source page
+     * @return the Form XObject or null if the page hasn't been placed twice yet
+     */
+    synchronized PDFFormXObject getForm(String key) {
+        return forms.get(key);
+    }
+
+    /**
+     * Records the placement of a page.
+     * @param key the key of the source page
+     * @return whether the page has been placed before
+     */
+    synchronized boolean place(String key) {
+        return !placed.add(key);
+    }
+
+    /**
+     * Sets the Form XObject used for the further placements of a page.
+     * @param key the key of the source page
+     * @param form the Form XObject
+     */
+    synchronized void putForm(String key, PDFFormXObject form) {
+        forms.put(key, form);
+    }
+}
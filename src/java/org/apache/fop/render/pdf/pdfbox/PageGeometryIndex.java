@@ -0,0 +1,376 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+/**
+ * On-disk index of the page geometry of source PDF files, so preloading a file seen before doesn't need to open it.
+ * Entries are keyed by the file's URI and validated against its size, modification time and a digest of its first
+ * and last bytes (header and trailer). The index is a versioned text file which is always replaced as a whole
+ * through an atomic rename. Running this class compacts an index, dropping entries of missing or changed files.
+ */
+public final class PageGeometryIndex {
+
+    private static final Log LOG = LogFactory.getLog(PageGeometryIndex.class);
+
+    /** Version of the file format, files of any other version are ignored. */
+    static final int VERSION = 1;
+    /** Number of new entries after which the index is written. */
+    static final int FLUSH_INTERVAL = 64;
+
+    private static final String HEADER = "# fop-pdf-images page geometry index";
+    private static final String VERSION_LINE = "version=";
+    private static final int DIGEST_BYTES = 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final Map<String, PageGeometryIndex> INDEXES = new HashMap<String, PageGeometryIndex>();
+
+    private final Path path;
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+    private int unsaved;
+
+    private PageGeometryIndex(Path path) {
+        this.path = path;
+        try {
+            read(path, entries);
+        } catch (IOException e) {
+            LOG.warn("Could not read page geometry index " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the index configured with {@link PDFImagesConfig#GEOMETRY_INDEX}.
+     * @return the index or null if none is configured
+     */
+    static PageGeometryIndex get() {
+        String name = PDFImagesConfig.get(null, PDFImagesConfig.GEOMETRY_INDEX);
+        if (name == null || name.trim().isEmpty()) {
+            return null;
+        }
+        return get(new File(name.trim()));
+    }
+
+    static PageGeometryIndex get(File file) {
+        String key = file.getAbsolutePath();
+        synchronized (INDEXES) {
+            PageGeometryIndex index = INDEXES.get(key);
+            if (index == null) {
+                final PageGeometryIndex newIndex = new PageGeometryIndex(file.getAbsoluteFile().toPath());
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        newIndex.flushQuietly();
+                    }
+                });
+                index = newIndex;
+                INDEXES.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Returns the local file a document has been loaded from.
+     * @param docURI the URI of the document
+     * @return the file or null if the URI doesn't point to an existing file
+     */
+    static File toFile(URI docURI) {
+        if (docURI == null || !"file".equals(docURI.getScheme())) {
+            return null;
+        }
+        try {
+            File file = new File(docURI);
+            return file.isFile() ? file : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the geometry of the pages of a file if the index holds it for the file's current content.
+     * @param file the PDF file
+     * @return the geometry of every page, or null if the file isn't indexed or has changed
+     */
+    int[][] lookup(File file) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(file.toURI().toString());
+        }
+        try {
+            if (entry != null && entry.matches(file)) {
+                return entry.pages;
+            }
+        } catch (IOException e) {
+            LOG.debug("Could not check " + file + " against the page geometry index: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Stores the geometry of the pages of a file.
+     * @param file the PDF file
+     * @param doc the document loaded from the file
+     */
+    void record(File file, PDDocument doc) {
+        try {
+            int[][] pages = new int[doc.getNumberOfPages()][];
+            for (int i = 0; i < pages.length; i++) {
+                pages[i] = getGeometry(doc.getPage(i));
+            }
+            Entry entry = new Entry(file.length(), file.lastModified(), getDigest(file), pages);
+            synchronized (this) {
+                entries.put(file.toURI().toString(), entry);
+                if (++unsaved >= FLUSH_INTERVAL) {
+                    flush();
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not index the page geometry of " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the width and height of the view box of a page in millipoints and the page's normalized rotation.
+     * @param page the page
+     * @return width, height and rotation
+     */
+    static int[] getGeometry(PDPage page) {
+        PDRectangle mediaBox = page.getMediaBox();
+        PDRectangle cropBox = page.getCropBox();
+        PDRectangle viewBox = cropBox != null ? cropBox : mediaBox;
+        int w = Math.round(viewBox.getWidth() * 1000);
+        int h = Math.round(viewBox.getHeight() * 1000);
+        return new int[] {w, h, PDFUtil.getNormalizedRotation(page)};
+    }
+
+    /**
+     * Writes the index, merged with entries other processes have written in the meantime.
+     * @throws IOException if the index can't be written
+     */
+    synchronized void flush() throws IOException {
+        if (unsaved == 0) {
+            return;
+        }
+        Map<String, Entry> onDisk = new TreeMap<String, Entry>();
+        read(path, onDisk);
+        for (Map.Entry<String, Entry> entry : onDisk.entrySet()) {
+            if (!entries.containsKey(entry.getKey())) {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+        }
+        write(path, entries);
+        unsaved = 0;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            LOG.warn("Could not write page geometry index " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the entries of files that no longer exist or have changed since they were indexed.
+     * @param indexFile the index
+     * @return the number of removed entries
+     * @throws IOException if the index can't be read or written
+     */
+    static int compact(Path indexFile) throws IOException {
+        Map<String, Entry> entries = new TreeMap<String, Entry>();
+        read(indexFile, entries);
+        int removed = 0;
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Entry> entry = it.next();
+            File file = toFile(URI.create(entry.getKey()));
+            if (file == null || !entry.getValue().matches(file)) {
+                it.remove();
+                removed++;
+            }
+        }
+        write(indexFile, entries);
+        return removed;
+    }
+
+    private static void read(Path indexFile, Map<String, Entry> entries) throws IOException {
+        if (!Files.isRegularFile(indexFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            while (line != null && line.startsWith("#")) {
+                line = reader.readLine();
+            }
+            if (line == null || !line.equals(VERSION_LINE + VERSION)) {
+                LOG.info("Ignoring page geometry index " + indexFile + " of another version");
+                return;
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length == 6) {
+                    try {
+                        entries.put(fields[0], Entry.parse(fields));
+                    } catch (RuntimeException e) {
+                        LOG.debug("Skipping malformed page geometry index entry: " + line);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void write(Path indexFile, Map<String, Entry> entries) throws IOException {
+        Path dir = indexFile.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, indexFile.getFileName().toString(), ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                writer.write(VERSION_LINE + VERSION);
+                writer.newLine();
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    writer.write(entry.getKey());
+                    writer.write('\t');
+                    writer.write(entry.getValue().toString());
+                    writer.newLine();
+                }
+            }
+            try {
+                Files.move(temp, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Computes the digest of the first and last bytes of a file, where a PDF has its header and its trailer.
+     */
+    static String getDigest(File file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            byte[] buf = new byte[(int) Math.min(DIGEST_BYTES, length)];
+            raf.readFully(buf);
+            md.update(buf);
+            raf.seek(Math.max(0, length - buf.length));
+            raf.readFully(buf);
+            md.update(buf);
+        }
+        byte[] digest = md.digest();
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    private static final class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String digest;
+        private final int[][] pages;
+
+        private Entry(long size, long lastModified, String digest, int[][] pages) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+            this.pages = pages;
+        }
+
+        boolean matches(File file) throws IOException {
+            return file.length() == size && file.lastModified() == lastModified && getDigest(file).equals(digest);
+        }
+
+        static Entry parse(String[] fields) {
+            String[] pageFields = fields[5].isEmpty() ? new String[0] : fields[5].split(";");
+            int[][] pages = new int[Integer.parseInt(fields[4])][];
+            if (pageFields.length != pages.length) {
+                throw new IllegalArgumentException("Page count mismatch");
+            }
+            for (int i = 0; i < pages.length; i++) {
+                String[] values = pageFields[i].split(",");
+                pages[i] = new int[] {
+                    Integer.parseInt(values[0]), Integer.parseInt(values[1]), Integer.parseInt(values[2])};
+            }
+            return new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3], pages);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(size).append('\t').append(lastModified).append('\t').append(digest).append('\t')
+                    .append(pages.length).append('\t');
+            for (int i = 0; i < pages.length; i++) {
+                if (i > 0) {
+                    sb.append(';');
+                }
+                sb.append(pages[i][0]).append(',').append(pages[i][1]).append(',').append(pages[i][2]);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Compacts page geometry index files.
+     * @param args the index files
+     * @throws IOException if an index can't be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: " + PageGeometryIndex.class.getName() + " <index file>...");
+            System.exit(1);
+        }
+        for (String arg : args) {
+            int removed = compact(new File(arg).toPath());
+            System.out.println(arg + ": removed " + removed + " stale entries");
+        }
+    }
+}
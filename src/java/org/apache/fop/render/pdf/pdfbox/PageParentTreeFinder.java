@@ -18,15 +18,10 @@
 package org.apache.fop.render.pdf.pdfbox;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.apache.pdfbox.cos.COSArray;
-import org.apache.pdfbox.cos.COSBase;
 import org.apache.pdfbox.cos.COSDictionary;
-import org.apache.pdfbox.cos.COSInteger;
 import org.apache.pdfbox.cos.COSName;
-import org.apache.pdfbox.cos.COSObject;
 
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
@@ -47,7 +42,7 @@ public class PageParentTreeFinder {
         }
         if (position != -1) {
             PDNumberTreeNode srcNumberTreeNode = srcDoc.getDocumentCatalog().getStructureTreeRoot().getParentTree();
-            return traverseParentTree(srcNumberTreeNode.getCOSObject(), position);
+            return StructureTreeIndex.get(srcDoc).getParentTreeArray(srcNumberTreeNode.getCOSObject(), position);
         }
         return new COSArray();
     }
@@ -65,77 +60,4 @@ public class PageParentTreeFinder {
         }
         return position;
     }
-
-    private COSArray traverseParentTree(COSDictionary numberTreeNodeDict, int position) {
-        COSArray numberTree;
-        COSArray parentTree;
-        List<COSArray> nums = new ArrayList<COSArray>();
-        if (numberTreeNodeDict.containsKey(COSName.NUMS)) {
-            numberTree = (COSArray)numberTreeNodeDict.getItem(COSName.NUMS);
-            return extractMarkedContentParents(numberTree, position);
-        } else {
-            parentTree = (COSArray) numberTreeNodeDict.getDictionaryObject(COSName.KIDS);
-            traverseKids(parentTree, position, nums);
-        }
-        if (nums.isEmpty()) {
-            return new COSArray();
-        }
-        return nums.get(0);
-    }
-
-    private void traverseKids(COSBase kids, int position, List<COSArray> numList) {
-        if (!numList.isEmpty()) {
-            return;
-        }
-        if (kids instanceof COSArray) {
-            COSArray kidsArray = (COSArray)kids;
-            for (COSBase kid : kidsArray) {
-                COSObject kidCOSObj = (COSObject) kid;
-                traverseKids(kidCOSObj, position, numList);
-            }
-        } else if (kids instanceof COSObject) {
-            COSObject kidCOSObj = (COSObject) kids;
-            COSDictionary kid = (COSDictionary) kidCOSObj.getObject();
-            if (kid.getDictionaryObject(COSName.NUMS) == null) {
-                traverseKids(kid.getDictionaryObject(COSName.KIDS), position, numList);
-            } else {
-                if (kid.getDictionaryObject(COSName.LIMITS) != null) {
-                    COSArray kidCOSArray = (COSArray) kid.getDictionaryObject(COSName.LIMITS);
-                    int lowerLimit = ((COSInteger) kidCOSArray.get(0)).intValue();
-                    int upperLimit = ((COSInteger) kidCOSArray.get(1)).intValue();
-                    if (lowerLimit <= position && position <= upperLimit) {
-                        COSArray nums = (COSArray) kid.getDictionaryObject(COSName.NUMS);
-                        numList.add(extractMarkedContentParents(nums, position));
-                    }
-                } else {
-                    COSArray nums = (COSArray) kid.getDictionaryObject(COSName.NUMS);
-                    numList.add(extractMarkedContentParents(nums, position));
-                }
-            }
-        }
-    }
-
-    private COSArray extractMarkedContentParents(COSArray numberTree, int position) {
-        COSBase tempObject;
-        boolean keyFlag = false;
-        for (COSBase kid : numberTree) {
-            if (keyFlag) {
-                if (kid instanceof COSObject) {
-                    tempObject = ((COSObject)kid).getObject();
-                    if (tempObject instanceof COSArray) {
-                        return (COSArray) tempObject;
-                    }
-                } else if (kid instanceof COSArray) {
-                    return (COSArray)kid;
-                }
-            }
-            if (kid instanceof COSInteger) {
-                int temp = ((COSInteger)kid).intValue();
-                if (temp == position) {
-                    keyFlag = true;
-                }
-            }
-        }
-        return new COSArray();
-    }
 }
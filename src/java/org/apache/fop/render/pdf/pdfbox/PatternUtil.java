@@ -23,8 +23,13 @@ import java.awt.geom.AffineTransform;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDResources;
@@ -43,6 +48,8 @@ public class PatternUtil {
     private Rectangle pos;
     private PDPage sourcePage;
     private AffineTransform generatorAT;
+    private final Map<COSName, COSBase> originalPatterns = new LinkedHashMap<>();
+    private final Map<COSDictionary, COSBase> originalMatrices = new IdentityHashMap<>();
 
     public PatternUtil(PDFPage targetPage, Rectangle pos, PDPage sourcePage, boolean disabled,
                        AffineTransform generatorAT) throws IOException {
@@ -65,9 +72,14 @@ public class PatternUtil {
         // The pattern found in the source document.
         AffineTransform shadingAdjust = getShadingAffineTransform();
         PDResources srcPgResources = sourcePage.getResources();
+        COSDictionary patterns = srcPgResources.getCOSObject().getCOSDictionary(COSName.PATTERN);
         for (COSName srcPgPatternName : patternNames) {
             // Get the original pattern.
             PDAbstractPattern srcPattern = srcPgResources.getPattern(srcPgPatternName);
+            originalPatterns.put(srcPgPatternName, patterns.getItem(srcPgPatternName));
+            if (!originalMatrices.containsKey(srcPattern.getCOSObject())) {
+                originalMatrices.put(srcPattern.getCOSObject(), srcPattern.getCOSObject().getItem(COSName.MATRIX));
+            }
             Matrix originalMatrix = srcPattern.getMatrix();
             if (originalMatrix == null) {
                 originalMatrix = new Matrix();
@@ -81,6 +93,29 @@ public class PatternUtil {
         }
     }
 
+    /**
+     * Undoes the changes made to the patterns of the source page once the page has been copied, so the source
+     * document can be used for another placement or by another thread.
+     */
+    public void restorePatterns() {
+        if (originalPatterns.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<COSDictionary, COSBase> matrix : originalMatrices.entrySet()) {
+            if (matrix.getValue() != null) {
+                matrix.getKey().setItem(COSName.MATRIX, matrix.getValue());
+            } else {
+                matrix.getKey().removeItem(COSName.MATRIX);
+            }
+        }
+        COSDictionary patterns = sourcePage.getResources().getCOSObject().getCOSDictionary(COSName.PATTERN);
+        for (Map.Entry<COSName, COSBase> pattern : originalPatterns.entrySet()) {
+            patterns.setItem(pattern.getKey(), pattern.getValue());
+        }
+        originalPatterns.clear();
+        originalMatrices.clear();
+    }
+
     public List<COSName> getPatternNames() {
         return patternNames;
     }
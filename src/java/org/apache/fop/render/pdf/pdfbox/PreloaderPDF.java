@@ -19,6 +19,7 @@
 
 package org.apache.fop.render.pdf.pdfbox;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -27,11 +28,10 @@ import java.net.URISyntaxException;
 import javax.imageio.stream.ImageInputStream;
 import javax.xml.transform.Source;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.pdfbox.Loader;
 import org.apache.pdfbox.io.RandomAccessReadBuffer;
 import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.pdmodel.PDPage;
-import org.apache.pdfbox.pdmodel.common.PDRectangle;
 
 import org.apache.xmlgraphics.image.loader.ImageContext;
 import org.apache.xmlgraphics.image.loader.ImageException;
@@ -94,28 +94,106 @@ public class PreloaderPDF extends AbstractImagePreloader {
 
         URI docURI = deriveDocumentURI(src.getSystemId());
 
+        PageGeometryIndex index = PageGeometryIndex.get();
+        File file = index != null ? PageGeometryIndex.toFile(docURI) : null;
+        if (file != null) {
+            int[][] pages = index.lookup(file);
+            if (pages != null) {
+                //answered from the index, the document is only opened when the page is rendered
+                XmlSourceUtil.closeQuietly(src);
+                ImageInfo info = createImageInfo(uri, context, pages, selectedPage);
+                info.getCustomObjects().put(ImageInfo.ORIGINAL_IMAGE, ImagePDF.createDeferred(info,
+                        new FileDocumentMaker(file, docURI, Interceptors.getInstance(context)), file.length()));
+                return info;
+            }
+        }
+
+        if (PDFImagesConfig.isEnabled(null, PDFImagesConfig.DEFERRED_LOADING)) {
+            return loadDeferred(uri, src, context, docURI, selectedPage, index, file);
+        }
+
         PDDocument pddoc = getDocument(context, docURI, src);
-        pddoc = Interceptors.getInstance().interceptOnLoad(pddoc, docURI);
+        pddoc = Interceptors.getInstance(context).interceptOnLoad(pddoc, docURI);
+        if (file != null) {
+            index.record(file, pddoc);
+        }
 
         //Disable the warning about a missing close since we rely on the GC to decide when
         //the cached PDF shall be disposed off.
 //        pddoc.getDocument().setWarnMissingClose(false);
 
+        ImageInfo info = createImageInfo(uri, context, pddoc, selectedPage);
+        info.getCustomObjects().put(ImageInfo.ORIGINAL_IMAGE, new ImagePDF(info, pddoc));
+        return info;
+    }
+
+    /**
+     * Reads only the page geometry, the document is parsed again once the image is needed. PDFBox reads the
+     * cross-reference table and trailer up front and objects on access, so this only touches the page tree. A
+     * local file is opened from disk both times and nothing but its path is kept; the bytes of other sources are
+     * read into memory and kept until the image is released.
+     */
+    private ImageInfo loadDeferred(String uri, Source src, ImageContext context, URI docURI, int selectedPage,
+                                   PageGeometryIndex index, File file) throws IOException, ImageException {
+        File localFile = file != null ? file : PageGeometryIndex.toFile(docURI);
+        ValueMaker<PDDocument> maker;
+        long size;
+        PDDocument pddoc;
+        if (localFile != null) {
+            XmlSourceUtil.closeQuietly(src);
+            FileDocumentMaker fileMaker = new FileDocumentMaker(localFile, docURI, Interceptors.getInstance(context));
+            maker = fileMaker;
+            size = localFile.length();
+            pddoc = fileMaker.make();
+        } else {
+            DeferredDocumentMaker bytesMaker =
+                    new DeferredDocumentMaker(src, docURI, Interceptors.getInstance(context));
+            maker = bytesMaker;
+            size = bytesMaker.data.length;
+            pddoc = bytesMaker.make();
+        }
+        ImageInfo info;
+        try {
+            if (file != null) {
+                index.record(file, pddoc);
+            }
+            info = createImageInfo(uri, context, pddoc, selectedPage);
+        } finally {
+            pddoc.close();
+        }
+        info.getCustomObjects().put(ImageInfo.ORIGINAL_IMAGE, ImagePDF.createDeferred(info, maker, size));
+        return info;
+    }
+
+    private ImageInfo createImageInfo(String uri, ImageContext context, PDDocument pddoc, int selectedPage)
+            throws ImageException {
         int pageCount = pddoc.getNumberOfPages();
+        checkPageIndex(selectedPage, pageCount);
+        int[] geometry = PageGeometryIndex.getGeometry(pddoc.getPage(selectedPage));
+        return createImageInfo(uri, context, geometry, selectedPage, pageCount);
+    }
+
+    private ImageInfo createImageInfo(String uri, ImageContext context, int[][] pages, int selectedPage)
+            throws ImageException {
+        checkPageIndex(selectedPage, pages.length);
+        return createImageInfo(uri, context, pages[selectedPage], selectedPage, pages.length);
+    }
+
+    private void checkPageIndex(int selectedPage, int pageCount) throws ImageException {
         if (selectedPage < 0 || selectedPage >= pageCount) {
             throw new ImageException("Selected page (index: " + selectedPage
                     + ") does not exist in the PDF file. The document has "
-                    + pddoc.getNumberOfPages() + " pages.");
+                    + pageCount + " pages.");
         }
-        PDPage page = pddoc.getPage(selectedPage);
-        PDRectangle mediaBox = page.getMediaBox();
-        PDRectangle cropBox = page.getCropBox();
-        PDRectangle viewBox = cropBox != null ? cropBox : mediaBox;
-        int w = Math.round(viewBox.getWidth() * 1000);
-        int h = Math.round(viewBox.getHeight() * 1000);
+    }
+
+    private ImageInfo createImageInfo(String uri, ImageContext context, int[] geometry, int selectedPage,
+                                      int pageCount) {
+        int w = geometry[0];
+        int h = geometry[1];
 
         //Handle the /Rotation entry on the page dict
-        int rotation = PDFUtil.getNormalizedRotation(page);
+        int rotation = geometry[2];
         if (rotation == 90 || rotation == 270) {
             //Swap width and height
             int exch = w;
@@ -130,9 +208,8 @@ public class PreloaderPDF extends AbstractImagePreloader {
 
         ImageInfo info = new ImageInfo(uri, ImagePDF.MIME_PDF);
         info.setSize(size);
-        info.getCustomObjects().put(ImageInfo.ORIGINAL_IMAGE, new ImagePDF(info, pddoc));
 
-        int lastPageIndex = pddoc.getNumberOfPages() - 1;
+        int lastPageIndex = pageCount - 1;
         if (selectedPage < lastPageIndex) {
             info.getCustomObjects().put(ImageInfo.HAS_MORE_IMAGES, Boolean.TRUE);
         }
@@ -148,10 +225,10 @@ public class PreloaderPDF extends AbstractImagePreloader {
 //                + "suitable decryption material (ex. a password).", e);
 //    }
 
-    private PDDocument getDocument(Object context, URI uri, Source src)
+    private PDDocument getDocument(ImageContext context, URI uri, Source src)
             throws IOException {
         try {
-            return createDocumentMaker(src, uri).make();
+            return createDocumentMaker(src, uri, Interceptors.getInstance(context)).make();
         } catch (IOException ioe) {
             throw ioe;
         } catch (Exception e) {
@@ -160,27 +237,80 @@ public class PreloaderPDF extends AbstractImagePreloader {
         }
     }
 
-    private ValueMaker<PDDocument> createDocumentMaker(final Source src, final URI docURI) {
-        return new DocumentMaker(src, docURI);
+    private ValueMaker<PDDocument> createDocumentMaker(final Source src, final URI docURI,
+                                                       Interceptors interceptors) {
+        return new DocumentMaker(src, docURI, interceptors);
     }
 
     static class DocumentMaker implements ValueMaker<PDDocument> {
         private Source src;
         private URI docURI;
+        private Interceptors interceptors;
 
         public DocumentMaker(Source src, URI docURI) {
+            this(src, docURI, Interceptors.getInstance());
+        }
+
+        DocumentMaker(Source src, URI docURI, Interceptors interceptors) {
             this.src = src;
             this.docURI = docURI;
+            this.interceptors = interceptors;
         }
 
             public PDDocument make() throws Exception {
                 final InputStream in = XmlSourceUtil.needInputStream(src);
                 try {
                     PDDocument pddoc = Loader.loadPDF(new RandomAccessReadBuffer(in));
-                    return Interceptors.getInstance().interceptOnLoad(pddoc, docURI);
+                    return interceptors.interceptOnLoad(pddoc, docURI);
                 } finally {
                     XmlSourceUtil.closeQuietly(src);
                 }
             }
         };
+
+    /**
+     * Parses a PDF file anew on every call.
+     */
+    static class FileDocumentMaker implements ValueMaker<PDDocument> {
+        private final File file;
+        private final URI docURI;
+        private final Interceptors interceptors;
+
+        FileDocumentMaker(File file, URI docURI, Interceptors interceptors) {
+            this.file = file;
+            this.docURI = docURI;
+            this.interceptors = interceptors;
+        }
+
+        public PDDocument make() throws IOException {
+            PDDocument pddoc = Loader.loadPDF(file);
+            return interceptors.interceptOnLoad(pddoc, docURI);
+        }
+    }
+
+    /**
+     * Keeps the raw bytes of a PDF and parses them anew on every call, so a document can be released while its
+     * image is only referenced from the layout.
+     */
+    static class DeferredDocumentMaker implements ValueMaker<PDDocument> {
+        private final byte[] data;
+        private final URI docURI;
+        private final Interceptors interceptors;
+
+        DeferredDocumentMaker(Source src, URI docURI, Interceptors interceptors) throws IOException {
+            InputStream in = XmlSourceUtil.needInputStream(src);
+            try {
+                data = IOUtils.toByteArray(in);
+            } finally {
+                XmlSourceUtil.closeQuietly(src);
+            }
+            this.docURI = docURI;
+            this.interceptors = interceptors;
+        }
+
+        public PDDocument make() throws IOException {
+            PDDocument pddoc = Loader.loadPDF(data);
+            return interceptors.interceptOnLoad(pddoc, docURI);
+        }
+    }
 }
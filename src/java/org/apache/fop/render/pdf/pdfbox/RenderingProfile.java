@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.awt.RenderingHints;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Quality/speed trade-off used when PDF pages are rendered through Java2D for output formats other than PDF.
+ */
+enum RenderingProfile {
+    /** Cheap hints and no oversampling, for proofs and draft runs. */
+    DRAFT(RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, RenderingHints.VALUE_RENDER_SPEED,
+            RenderingHints.VALUE_ANTIALIAS_OFF, false),
+    /** The default: 72 dpi sources are rendered at twice the resolution. */
+    NORMAL(RenderingHints.VALUE_INTERPOLATION_BILINEAR, RenderingHints.VALUE_RENDER_QUALITY,
+            RenderingHints.VALUE_ANTIALIAS_ON, false),
+    /** Best quality: bicubic interpolation and every source resolution rendered at twice the resolution. */
+    HIGH(RenderingHints.VALUE_INTERPOLATION_BICUBIC, RenderingHints.VALUE_RENDER_QUALITY,
+            RenderingHints.VALUE_ANTIALIAS_ON, true);
+
+    /** Name of the setting selecting the profile: draft, normal or high. */
+    static final String PROFILE = PDFImagesConfig.PREFIX + "rendering-profile";
+    /** Name of the setting capping the rendering resolution; append "." and a format (e.g. ps) to cap one. */
+    static final String MAX_DPI = PDFImagesConfig.PREFIX + "max-dpi";
+
+    private final Object interpolation;
+    private final Object rendering;
+    private final Object antialiasing;
+    private final boolean alwaysOversample;
+
+    RenderingProfile(Object interpolation, Object rendering, Object antialiasing, boolean alwaysOversample) {
+        this.interpolation = interpolation;
+        this.rendering = rendering;
+        this.antialiasing = antialiasing;
+        this.alwaysOversample = alwaysOversample;
+    }
+
+    static RenderingProfile get(Map<?, ?> hints) {
+        String name = PDFImagesConfig.get(hints, PROFILE);
+        if (name != null) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                //fall back to the default profile
+            }
+        }
+        return NORMAL;
+    }
+
+    RenderingHints getRenderingHints() {
+        RenderingHints r = new RenderingHints(null);
+        r.put(RenderingHints.KEY_INTERPOLATION, interpolation);
+        r.put(RenderingHints.KEY_RENDERING, rendering);
+        r.put(RenderingHints.KEY_ANTIALIASING, antialiasing);
+        return r;
+    }
+
+    /**
+     * Returns the resolution to render at for the given source resolution.
+     */
+    float getDPI(float sourceResolution) {
+        if (this == DRAFT) {
+            return sourceResolution;
+        }
+        if (sourceResolution == 72 || alwaysOversample) {
+            //note we are doing twice as many pixels because
+            //the default size is not really good resolution,
+            //so create an image that is twice the size
+            return sourceResolution * 2;
+        }
+        return sourceResolution;
+    }
+
+    /**
+     * Applies the configured resolution cap for the given output format, if any.
+     */
+    static float capDPI(float dpi, Map<?, ?> hints, String format) {
+        int max = PDFImagesConfig.getInt(hints, MAX_DPI + "." + format,
+                PDFImagesConfig.getInt(hints, MAX_DPI, 0));
+        if (max > 0 && dpi > max) {
+            return max;
+        }
+        return dpi;
+    }
+}
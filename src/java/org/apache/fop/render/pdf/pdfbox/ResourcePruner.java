@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * Removes the resources a page doesn't use from its resource dictionary, so a resource dictionary shared by all
+ * pages of a document doesn't get cloned in full for every imported page. A resource is used if its name is an
+ * operand in the page's content, or in the content of a form XObject, tiling pattern or Type 3 font which has no
+ * resources of its own and so uses the page's.
+ */
+final class ResourcePruner {
+
+    private static final COSName[] PRUNED = {COSName.FONT, COSName.XOBJECT, COSName.EXT_G_STATE,
+        COSName.COLORSPACE, COSName.PATTERN, COSName.SHADING, COSName.PROPERTIES};
+
+    private ResourcePruner() { }
+
+    /**
+     * Returns the resources used by a page.
+     * @param resources the page's resource dictionary
+     * @param page the page
+     * @return a copy of the resource dictionary without the unused resources, or the dictionary itself if all its
+     * resources are used or the content can't be parsed
+     */
+    static COSDictionary prune(COSDictionary resources, PDPage page) {
+        Set<COSName> used = new HashSet<COSName>();
+        try {
+            try (InputStream in = page.getContents()) {
+                collectNames(IOUtils.toByteArray(in), used);
+            }
+            Set<COSStream> scanned = Collections.newSetFromMap(new IdentityHashMap<COSStream, Boolean>());
+            List<COSStream> inheriting = getInheritingStreams(resources, used);
+            while (!inheriting.isEmpty()) {
+                for (COSStream stream : inheriting) {
+                    if (scanned.add(stream)) {
+                        try (InputStream in = stream.createInputStream()) {
+                            collectNames(IOUtils.toByteArray(in), used);
+                        }
+                    }
+                }
+                inheriting = getInheritingStreams(resources, used);
+                inheriting.removeAll(scanned);
+            }
+        } catch (IOException e) {
+            return resources;
+        }
+        COSDictionary pruned = new COSDictionary();
+        boolean changed = false;
+        for (Map.Entry<COSName, COSBase> entry : resources.entrySet()) {
+            COSBase value = entry.getValue();
+            COSBase dict = resources.getDictionaryObject(entry.getKey());
+            if (isPruned(entry.getKey()) && dict instanceof COSDictionary) {
+                COSDictionary kept = new COSDictionary();
+                for (Map.Entry<COSName, COSBase> item : ((COSDictionary) dict).entrySet()) {
+                    if (used.contains(item.getKey())) {
+                        kept.setItem(item.getKey(), item.getValue());
+                    }
+                }
+                if (kept.size() != ((COSDictionary) dict).size()) {
+                    changed = true;
+                    value = kept;
+                }
+            }
+            pruned.setItem(entry.getKey(), value);
+        }
+        return changed ? pruned : resources;
+    }
+
+    private static boolean isPruned(COSName name) {
+        for (COSName pruned : PRUNED) {
+            if (pruned.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the content streams of the used resources which use the page's resources.
+     */
+    private static List<COSStream> getInheritingStreams(COSDictionary resources, Set<COSName> used) {
+        List<COSStream> streams = new ArrayList<COSStream>();
+        for (COSName category : new COSName[] {COSName.XOBJECT, COSName.PATTERN}) {
+            COSBase dict = resources.getDictionaryObject(category);
+            if (dict instanceof COSDictionary) {
+                for (COSName name : ((COSDictionary) dict).keySet()) {
+                    COSBase value = ((COSDictionary) dict).getDictionaryObject(name);
+                    if (used.contains(name) && value instanceof COSStream
+                            && !((COSStream) value).containsKey(COSName.RESOURCES)) {
+                        streams.add((COSStream) value);
+                    }
+                }
+            }
+        }
+        COSBase fonts = resources.getDictionaryObject(COSName.FONT);
+        if (fonts instanceof COSDictionary) {
+            for (COSName name : ((COSDictionary) fonts).keySet()) {
+                COSBase font = ((COSDictionary) fonts).getDictionaryObject(name);
+                if (used.contains(name) && font instanceof COSDictionary
+                        && COSName.TYPE3.equals(((COSDictionary) font).getCOSName(COSName.SUBTYPE))
+                        && !((COSDictionary) font).containsKey(COSName.RESOURCES)) {
+                    COSBase charProcs = ((COSDictionary) font).getDictionaryObject(COSName.CHAR_PROCS);
+                    if (charProcs instanceof COSDictionary) {
+                        for (COSName glyph : ((COSDictionary) charProcs).keySet()) {
+                            COSBase proc = ((COSDictionary) charProcs).getDictionaryObject(glyph);
+                            if (proc instanceof COSStream) {
+                                streams.add((COSStream) proc);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return streams;
+    }
+
+    /**
+     * Collects every name used as an operand, whatever the operator, so operators which aren't known here can't
+     * lose a resource.
+     */
+    private static void collectNames(byte[] content, Set<COSName> used) throws IOException {
+        for (Object token : new PDFStreamParser(content).parse()) {
+            if (token instanceof Operator) {
+                COSDictionary imageParameters = ((Operator) token).getImageParameters();
+                if (imageParameters != null) {
+                    addNames(imageParameters, used);
+                }
+            } else {
+                addNames((COSBase) token, used);
+            }
+        }
+    }
+
+    private static void addNames(COSBase operand, Set<COSName> used) {
+        if (operand instanceof COSName) {
+            used.add((COSName) operand);
+        } else if (operand instanceof COSArray) {
+            for (COSBase item : (COSArray) operand) {
+                addNames(item, used);
+            }
+        } else if (operand instanceof COSDictionary) {
+            for (COSBase value : ((COSDictionary) operand).getValues()) {
+                addNames(value, used);
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import org.apache.fop.pdf.PDFStream;
+
+/**
+ * A cloned stream whose data is copied from the source PDF when the target PDF is written, instead of being
+ * buffered when the stream is cloned. Source documents are kept open until all their deferred streams have been
+ * written, see {@link #close(PDDocument)}. Streams that are garbage collected without being written, e.g. because
+ * the render failed or was abandoned, no longer keep their document open: they're dropped from its pin the next
+ * time a document is closed or a stream written, closing the document if it has been closed meanwhile.
+ */
+final class SourcePDFStream extends PDFStream {
+
+    /** Deferred streams not yet written, by source document. */
+    private static final Map<PDDocument, Pin> PINS = new HashMap<PDDocument, Pin>();
+    /** Deferred streams garbage collected without being written. */
+    private static final ReferenceQueue<SourcePDFStream> DROPPED = new ReferenceQueue<SourcePDFStream>();
+
+    private final PDDocument document;
+    private final boolean decode;
+    private final Pending pending;
+    private COSStream source;
+
+    /**
+     * @param document the source document
+     * @param source the source stream
+     * @param decode true to write the decoded data, false to write the data as it's encoded in the source
+     */
+    SourcePDFStream(PDDocument document, COSStream source, boolean decode) {
+        this.document = document;
+        this.source = source;
+        this.decode = decode;
+        pending = new Pending(this, document);
+        synchronized (PINS) {
+            Pin pin = PINS.get(document);
+            if (pin == null) {
+                pin = new Pin();
+                PINS.put(document, pin);
+            }
+            pin.streams.add(pending);
+        }
+    }
+
+    /**
+     * Tells whether the data of cloned streams is deferred, see {@link PDFImagesConfig#LAZY_STREAMS}.
+     * @return true if streams are copied at write time
+     */
+    static boolean isEnabled() {
+        return PDFImagesConfig.isEnabled(null, PDFImagesConfig.LAZY_STREAMS);
+    }
+
+    /**
+     * Closes a source document, or marks it to be closed once its last deferred stream has been written.
+     * @param document the source document
+     * @throws IOException if the document can't be closed
+     */
+    static void close(PDDocument document) throws IOException {
+        unpinDropped();
+        synchronized (PINS) {
+            Pin pin = PINS.get(document);
+            if (pin != null) {
+                pin.close = true;
+                return;
+            }
+        }
+        document.close();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected int getSizeHint() throws IOException {
+        if (source != null && !decode) {
+            return (int) Math.min(Integer.MAX_VALUE, source.getLength());
+        }
+        return super.getSizeHint();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void outputRawStreamData(OutputStream out) throws IOException {
+        if (source == null) {
+            super.outputRawStreamData(out);
+            return;
+        }
+        //other threads may be importing pages of the same document
+        synchronized (document) {
+            try (InputStream in = decode ? source.createInputStream() : source.createRawInputStream()) {
+                IOUtils.copyLarge(in, out);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int output(OutputStream stream) throws IOException {
+        try {
+            return super.output(stream);
+        } finally {
+            release();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setData(byte[] data) throws IOException {
+        //the data replaces the source's
+        super.setData(data);
+        release();
+    }
+
+    private void release() throws IOException {
+        if (source == null) {
+            return;
+        }
+        source = null;
+        pending.clear();
+        unpin(pending);
+        unpinDropped();
+    }
+
+    private static void unpinDropped() throws IOException {
+        Reference<? extends SourcePDFStream> dropped;
+        while ((dropped = DROPPED.poll()) != null) {
+            unpin((Pending) dropped);
+        }
+    }
+
+    private static void unpin(Pending pending) throws IOException {
+        boolean close = false;
+        synchronized (PINS) {
+            Pin pin = PINS.get(pending.document);
+            if (pin != null && pin.streams.remove(pending) && pin.streams.isEmpty()) {
+                PINS.remove(pending.document);
+                close = pin.close;
+            }
+        }
+        if (close) {
+            pending.document.close();
+        }
+    }
+
+    private static final class Pin {
+        /** The deferred streams not yet written, by their weak references. */
+        private final Set<Pending> streams = new HashSet<Pending>();
+        private boolean close;
+    }
+
+    /**
+     * A weak reference to a deferred stream, enqueued if the stream is garbage collected without being written.
+     */
+    private static final class Pending extends WeakReference<SourcePDFStream> {
+        private final PDDocument document;
+
+        private Pending(SourcePDFStream stream, PDDocument document) {
+            super(stream, DROPPED);
+            this.document = document;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+
+import org.apache.fop.pdf.PDFObject;
+import org.apache.fop.pdf.PDFReference;
+
+/**
+ * The streams cloned into a target document by content digest, so byte-identical streams with equivalent
+ * dictionaries are written once whichever source PDF they come from, and however long the user agent's object
+ * caches keep them. The digest is also what decides whether a clone found in the object caches under a stream's
+ * hash can be used, as the hash may collide and the caches may have been filled for another target document.
+ * <p>
+ * Only streams which aren't changed once cloned are registered, pattern and form streams are left to the caches.
+ * The registry is part of the {@link ImportState} of the target document.
+ */
+final class StreamRegistry {
+
+    private final Map<String, PDFReference> streams = new HashMap<String, PDFReference>();
+    /** The references of the registered clones. */
+    private final Set<String> clones = new HashSet<String>();
+    private final boolean complete;
+
+    /**
+     * @param complete true if the registry sees all the clones of the target document, false if it only sees
+     * those of one adapter
+     */
+    StreamRegistry(boolean complete) {
+        this.complete = complete;
+    }
+
+    /**
+     * Tells whether a stream is registered by content.
+     * @param stream the source stream
+     * @return false for pattern and form streams, whose clones may be changed by later imports
+     */
+    static boolean isRegistered(COSStream stream) {
+        return stream.getItem(COSName.TYPE) != COSName.PATTERN && stream.getItem(COSName.SUBTYPE) != COSName.FORM;
+    }
+
+    /**
+     * Returns the clone of a stream with the given content.
+     * @param digest the content digest of the source stream
+     * @param cached the clone found in the object caches, may be null
+     * @return the cached clone if it has the content, a reference to the clone with the content, or null if there
+     * is none
+     */
+    synchronized Object get(String digest, Object cached) {
+        PDFReference registered = streams.get(digest);
+        if (registered == null) {
+            //a clone registered with other content is a hash collision; a registry that only sees the clones of
+            //one adapter can't tell other clones from those of the other adapters, so it leaves them to the caches
+            if (complete || cached == null || clones.contains(toReference(cached))) {
+                return null;
+            }
+            return cached;
+        }
+        if (cached != null && registered.toString().equals(toReference(cached))) {
+            return cached;
+        }
+        return registered;
+    }
+
+    /**
+     * Registers the clone of a stream, unless a clone with the same content has been registered before.
+     * @param digest the content digest of the source stream
+     * @param clone the clone
+     */
+    synchronized void register(String digest, PDFObject clone) {
+        if (!streams.containsKey(digest)) {
+            PDFReference reference = clone.makeReference();
+            streams.put(digest, reference);
+            clones.add(reference.toString());
+        }
+    }
+
+    private static String toReference(Object clone) {
+        if (clone instanceof PDFObject && ((PDFObject) clone).hasObjectNumber()) {
+            return ((PDFObject) clone).makeReference().toString();
+        }
+        return String.valueOf(clone);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Lookups into the logical structure of a source document, built once per document so importing its pages
+ * doesn't walk the structure tree again for every page.
+ */
+final class StructureTreeIndex {
+
+    private static final Map<PDDocument, StructureTreeIndex> INDEXES =
+            new WeakHashMap<PDDocument, StructureTreeIndex>();
+
+    /** Marks elements for which neither they nor their ancestors have a /Pg entry. */
+    private static final COSDictionary NO_PAGE = new COSDictionary();
+    /** Marks elements whose effective /Pg entry doesn't resolve to a page. */
+    private static final COSDictionary NULL_PAGE = new COSDictionary();
+
+    private Map<Integer, COSArray> parentTree;
+    private final Map<COSDictionary, COSDictionary> owningPages =
+            new IdentityHashMap<COSDictionary, COSDictionary>();
+
+    static StructureTreeIndex get(PDDocument doc) {
+        synchronized (INDEXES) {
+            StructureTreeIndex index = INDEXES.get(doc);
+            if (index == null) {
+                index = new StructureTreeIndex();
+                INDEXES.put(doc, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Returns the marked-content parents stored in the parent tree under the given key.
+     * @param parentTreeRoot the root of the source parent tree
+     * @param key the /StructParents value of the page
+     * @return the array, empty if the key isn't present
+     */
+    synchronized COSArray getParentTreeArray(COSDictionary parentTreeRoot, int key) {
+        if (parentTree == null) {
+            parentTree = new HashMap<Integer, COSArray>();
+            Set<COSDictionary> visited = Collections.newSetFromMap(new IdentityHashMap<COSDictionary, Boolean>());
+            addNumberTreeNode(parentTreeRoot, visited);
+        }
+        COSArray array = parentTree.get(key);
+        return array != null ? array : new COSArray();
+    }
+
+    private void addNumberTreeNode(COSDictionary node, Set<COSDictionary> visited) {
+        if (node == null || !visited.add(node)) {
+            return;
+        }
+        COSBase nums = node.getDictionaryObject(COSName.NUMS);
+        if (nums instanceof COSArray) {
+            addNums((COSArray) nums);
+        } else {
+            COSBase kids = node.getDictionaryObject(COSName.KIDS);
+            if (kids instanceof COSArray) {
+                for (COSBase kid : (COSArray) kids) {
+                    COSBase kidNode = kid instanceof COSObject ? ((COSObject) kid).getObject() : kid;
+                    if (kidNode instanceof COSDictionary) {
+                        addNumberTreeNode((COSDictionary) kidNode, visited);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addNums(COSArray nums) {
+        for (int i = 0; i + 1 < nums.size(); i += 2) {
+            COSBase key = nums.getObject(i);
+            COSBase value = nums.getObject(i + 1);
+            if (key instanceof COSInteger && value instanceof COSArray) {
+                Integer k = ((COSInteger) key).intValue();
+                if (!parentTree.containsKey(k)) {
+                    parentTree.put(k, (COSArray) value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether a structure element belongs to the given page, i.e. its /Pg entry, or that of its nearest
+     * ancestor having one, points at the page. Elements without any /Pg in their ancestry belong to every page.
+     * @param elem the structure element
+     * @param page the source page dictionary
+     * @return true if the element belongs to the page
+     */
+    synchronized boolean isOnPage(COSDictionary elem, COSDictionary page) {
+        COSDictionary owner = getOwningPage(elem);
+        return owner == NO_PAGE || owner == page;
+    }
+
+    private COSDictionary getOwningPage(COSDictionary elem) {
+        List<COSDictionary> path = new ArrayList<COSDictionary>();
+        COSDictionary owner = null;
+        COSDictionary current = elem;
+        while (owner == null) {
+            owner = owningPages.get(current);
+            if (owner != null) {
+                break;
+            }
+            path.add(current);
+            if (current.containsKey(COSName.PG)) {
+                COSBase pageDict = current.getDictionaryObject(COSName.PG);
+                owner = pageDict instanceof COSDictionary ? (COSDictionary) pageDict : NULL_PAGE;
+            } else if (current.getDictionaryObject(COSName.P) instanceof COSDictionary) {
+                current = (COSDictionary) current.getDictionaryObject(COSName.P);
+                if (path.contains(current)) {
+                    owner = NO_PAGE;
+                }
+            } else {
+                owner = NO_PAGE;
+            }
+        }
+        for (COSDictionary dict : path) {
+            owningPages.put(dict, owner);
+        }
+        return owner;
+    }
+}
@@ -21,10 +21,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Set;
 
 import org.apache.pdfbox.cos.COSArray;
 import org.apache.pdfbox.cos.COSBase;
@@ -56,15 +58,21 @@ public class StructureTreeMerger {
     PDFPage targetPage;
     PDFDocument pdfDoc;
     private PDPage srcPage;
-    private COSDictionary roleMap;
     private PDFStructElem currentSessionElem;
     private PDFLogicalStructureHandler logicalStructHandler;
     private Map<Integer, PDFStructElem> structElemCache = new HashMap<Integer, PDFStructElem>();
-    private Map<Integer, PDFStructElem> markedContentMap = new TreeMap<Integer, PDFStructElem>();
+    private int[] markedContentKeys = new int[16];
+    private PDFStructElem[] markedContentParents = new PDFStructElem[16];
+    private int markedContentCount;
+    private boolean markedContentSorted = true;
+    private Map<String, Set<String>> roleMapKeysByType = Collections.emptyMap();
+    private Set<PDFStructElem> elemsWithPlaceholders =
+            Collections.newSetFromMap(new IdentityHashMap<PDFStructElem, Boolean>());
     private int currentMCID;
     private List<COSObject> topElems = new ArrayList<COSObject>();
     private COSArray extra = new COSArray();
     private COSArray originalParentTree = new COSArray();
+    private StructureTreeIndex structureTreeIndex;
 
     public StructureTreeMerger(PDFStructElem currentSessionElem, PDFLogicalStructureHandler logicalStructHandler,
                                PDFBoxAdapter adapter, PDPage srcPage) {
@@ -78,7 +86,11 @@ public class StructureTreeMerger {
     }
 
     public void setRoleMap(COSDictionary roleMap) {
-        this.roleMap = roleMap;
+        roleMapKeysByType = StructureTreeMergerUtil.invertRoleMap(roleMap);
+    }
+
+    void setStructureTreeIndex(StructureTreeIndex structureTreeIndex) {
+        this.structureTreeIndex = structureTreeIndex;
     }
 
     public void copyStructure(COSArray pageParentTreeArray) throws IOException {
@@ -174,11 +186,13 @@ public class StructureTreeMerger {
     }
 
     private void createParents(COSArray markedContentParents) throws IOException {
+        Set<COSDictionary> done = Collections.newSetFromMap(new IdentityHashMap<COSDictionary, Boolean>());
         for (COSBase entry : markedContentParents) {
             COSObject elemCos = (COSObject)entry;
             COSDictionary dict = (COSDictionary) elemCos.getObject();
             COSObject elemParent = (COSObject)dict.getItem(COSName.P);
-            if (elemParent != null) {
+            //an element owning several marked-content sequences is listed once per sequence
+            if (elemParent != null && done.add(dict)) {
                 PDFStructElem elem = structElemCache.get((int)elemCos.getObjectNumber());
                 createParents(elemCos, elemParent, elem);
             }
@@ -302,7 +316,7 @@ public class StructureTreeMerger {
                     createkidEntryFromCosObjectForRow(baseObj, parent);
                 }
             } else {
-                parent.addKid(null);
+                addPlaceholder(parent);
             }
         }
     }
@@ -324,15 +338,10 @@ public class StructureTreeMerger {
     }
 
     private boolean checkPageEntryInAncestorsRecursively(COSDictionary elem) {
-        if (elem.containsKey(COSName.PG)) {
-            COSDictionary pageDict = (COSDictionary)elem.getDictionaryObject(COSName.PG);
-            return srcPage.getCOSObject() == pageDict;
-        } else if (elem.containsKey(COSName.P)) {
-            COSDictionary parent = (COSDictionary)elem.getDictionaryObject(COSName.P);
-            return checkPageEntryInAncestorsRecursively(parent);
-        } else {
-            return true;
+        if (structureTreeIndex == null) {
+            structureTreeIndex = new StructureTreeIndex();
         }
+        return structureTreeIndex.isOnPage(elem, srcPage.getCOSObject());
     }
 
     private boolean isElementFromSourcePage(COSDictionary mrcDict, COSDictionary parentDict) {
@@ -354,16 +363,19 @@ public class StructureTreeMerger {
                 String type = ((COSName) mcrDict.getDictionaryObject(COSName.TYPE)).getName();
                 if (type.equals("OBJR")) {
                     COSObject obj = (COSObject) mcrDict.getItem(COSName.OBJ);
-                    if (adapter.getCachedClone(obj) == null) {
+                    Object clone = adapter.getCachedClone(obj);
+                    if (clone == null) {
                         referenceObj = null;
+                    } else if (clone instanceof PDFReference) {
+                        referenceObj = (PDFReference) clone;
                     } else {
-                        referenceObj = ((PDFObject) adapter.getCachedClone(obj)).makeReference();
+                        referenceObj = ((PDFObject) clone).makeReference();
                     }
                     contentItem.put(COSName.OBJ.getName(), referenceObj);
                     updateStructParentAndAddToPageParentTree(referenceObj, parent);
                 } else if (type.equals("MCR")) {
                     updateMCIDEntry(contentItem);
-                    markedContentMap.put((((PDFNumber)contentItem.get(COSName.MCID.getName())).getNumber())
+                    putMarkedContent((((PDFNumber)contentItem.get(COSName.MCID.getName())).getNumber())
                             .intValue(), parent);
                 }
             }
@@ -374,14 +386,59 @@ public class StructureTreeMerger {
             }
             parent.addKid(contentItem);
         } else {
-            parent.addKid(null);
+            addPlaceholder(parent);
         }
     }
 
     private void createKidEntryFromInt(PDFNumber num, PDFStructElem parent) {
         num.setNumber(num.getNumber().intValue() + currentMCID);
         parent.addKid(num);
-        markedContentMap.put(num.getNumber().intValue(), parent);
+        putMarkedContent(num.getNumber().intValue(), parent);
+    }
+
+    private void putMarkedContent(int mcid, PDFStructElem parent) {
+        if (markedContentCount == markedContentKeys.length) {
+            markedContentKeys = Arrays.copyOf(markedContentKeys, markedContentCount * 2);
+            markedContentParents = Arrays.copyOf(markedContentParents, markedContentCount * 2);
+        }
+        if (markedContentCount > 0 && markedContentKeys[markedContentCount - 1] >= mcid) {
+            markedContentSorted = false;
+        }
+        markedContentKeys[markedContentCount] = mcid;
+        markedContentParents[markedContentCount] = parent;
+        markedContentCount++;
+    }
+
+    /**
+     * Returns the parents of the marked content in MCID order; for an MCID registered more than once the last
+     * parent wins. MCIDs normally arrive in order, in which case no sorting is needed.
+     */
+    private List<PDFStructElem> getMarkedContentParents() {
+        List<PDFStructElem> parents = new ArrayList<PDFStructElem>(markedContentCount);
+        if (markedContentSorted) {
+            parents.addAll(Arrays.asList(markedContentParents).subList(0, markedContentCount));
+            return parents;
+        }
+        Integer[] order = new Integer[markedContentCount];
+        for (int i = 0; i < markedContentCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(markedContentKeys[a], markedContentKeys[b]);
+            }
+        });
+        for (int i = 0; i < order.length; i++) {
+            if (i + 1 == order.length || markedContentKeys[order[i]] != markedContentKeys[order[i + 1]]) {
+                parents.add(markedContentParents[order[i]]);
+            }
+        }
+        return parents;
+    }
+
+    private void addPlaceholder(PDFStructElem parent) {
+        parent.addKid(null);
+        elemsWithPlaceholders.add(parent);
     }
 
     private void updateMCIDEntry(PDFDictionary mcrDictionary) {
@@ -394,13 +451,13 @@ public class StructureTreeMerger {
     }
 
     private void removeNullPlaceholders() {
-        List<PDFStructElem> list = new ArrayList<PDFStructElem>(structElemCache.values());
-        for (PDFStructElem elem : list) {
+        for (PDFStructElem elem : elemsWithPlaceholders) {
             List<PDFObject> kids = elem.getKids();
             if (kids != null) {
                 kids.removeAll(Collections.singleton(null));
             }
         }
+        elemsWithPlaceholders.clear();
     }
 
     private boolean isStructureTreeRoot(COSDictionary elem) {
@@ -420,15 +477,14 @@ public class StructureTreeMerger {
     }
 
     private List<PDFStructElem> restoreNullValuesInParentTree() {
-        int total = markedContentMap.size();
-        List<PDFStructElem> list = new ArrayList<PDFStructElem>(markedContentMap.values());
-        List<PDFStructElem> complete = new ArrayList<PDFStructElem>(total);
+        List<PDFStructElem> list = getMarkedContentParents();
+        List<PDFStructElem> complete = new ArrayList<PDFStructElem>(list.size());
+        int next = 0;
         for (COSBase base : originalParentTree) {
             if (base instanceof COSNull || base == null) {
                 complete.add(null);
-            } else if (!list.isEmpty()) {
-                complete.add(list.get(0));
-                list.remove(0);
+            } else if (next < list.size()) {
+                complete.add(list.get(next++));
             }
         }
         return complete;
@@ -506,7 +562,7 @@ public class StructureTreeMerger {
             COSArray array = (COSArray)baseArray;
             int size = array.size();
             for (int i = 0; i < size; i++) {
-                elem.addKid(null);
+                addPlaceholder(elem);
             }
         }
     }
@@ -516,8 +572,8 @@ public class StructureTreeMerger {
         if (type.equals(potentialCustomElemType)) {
             return true;
         } else {
-            List<String> rolemapValues = StructureTreeMergerUtil.findRoleMapKeyByValue(type, roleMap);
-            return rolemapValues.contains(potentialCustomElemType);
+            Set<String> rolemapValues = roleMapKeysByType.get(type);
+            return rolemapValues != null && rolemapValues.contains(potentialCustomElemType);
         }
     }
 
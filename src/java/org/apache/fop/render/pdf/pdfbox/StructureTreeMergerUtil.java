@@ -17,8 +17,12 @@
 package org.apache.fop.render.pdf.pdfbox;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.apache.pdfbox.cos.COSArray;
 import org.apache.pdfbox.cos.COSBase;
@@ -58,4 +62,27 @@ public final class StructureTreeMergerUtil {
         }
         return keys;
     }
+
+    /**
+     * Inverts a role map so the custom types mapped to a standard type can be looked up directly.
+     * @param roleMap the role map, may be null
+     * @return the custom types keyed by the type they map to
+     */
+    public static Map<String, Set<String>> invertRoleMap(COSDictionary roleMap) {
+        Map<String, Set<String>> inverse = new HashMap<String, Set<String>>();
+        if (roleMap != null) {
+            for (Entry<COSName, COSBase> entry : roleMap.entrySet()) {
+                if (entry.getValue() instanceof COSName) {
+                    String value = ((COSName) entry.getValue()).getName();
+                    Set<String> keys = inverse.get(value);
+                    if (keys == null) {
+                        keys = new HashSet<String>();
+                        inverse.put(value, keys);
+                    }
+                    keys.add(entry.getKey().getName());
+                }
+            }
+        }
+        return inverse;
+    }
 }
@@ -53,6 +53,7 @@ public class TaggedPDFConductor {
     public void handleLogicalStructure(PDDocument srcDoc) throws IOException {
         if (isInputPDFTagged(srcDoc) && isStructureTreeRootNull(srcDoc)) {
             merger.setCurrentSessionElem();
+            merger.setStructureTreeIndex(StructureTreeIndex.get(srcDoc));
             COSDictionary strucRootDict = srcDoc.getDocumentCatalog().getStructureTreeRoot()
                 .getCOSObject();
             rootMod.structTreeRootEntriesToCopy(strucRootDict);
@@ -36,6 +36,7 @@ import static org.mockito.Mockito.when;
 
 import org.apache.pdfbox.cos.COSArray;
 import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
 import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.cos.COSObject;
 
@@ -218,6 +219,38 @@ public class StructureTreeMergerTestCase {
         }
     }
 
+    @Test(timeout = 30000)
+    public void testLargePage() throws IOException {
+        final int count = 50000;
+        PDPage srcPage = new PDPage();
+        COSDictionary root = new COSDictionary();
+        root.setItem(COSName.TYPE, COSName.STRUCT_TREE_ROOT);
+        COSDictionary paragraph = new COSDictionary();
+        paragraph.setItem(COSName.S, COSName.P);
+        paragraph.setItem(COSName.P, new COSObject(root));
+        paragraph.setItem(COSName.PG, srcPage.getCOSObject());
+        COSArray mcids = new COSArray();
+        COSArray markedContentParents = new COSArray();
+        COSObject paragraphObj = new COSObject(paragraph);
+        for (int i = 0; i < count; i++) {
+            mcids.add(COSInteger.get(i));
+            markedContentParents.add(paragraphObj);
+        }
+        paragraph.setItem(COSName.K, mcids);
+        PDFStructElem elem = new PDFStructElem();
+        elem.setObjectNumber(2);
+        adapter = new PDFBoxAdapter(pdfPage, new HashMap<>(), new HashMap<>(), new HashMap<>(), new HashMap<>(),
+                new DefaultEventBroadcaster());
+        PDFLogicalStructureHandler handler = setUpPDFLogicalStructureHandler();
+        StructureTreeMerger merger = new StructureTreeMerger(elem, handler, adapter, srcPage);
+        merger.copyStructure(markedContentParents);
+        PDFArray array = handler.getPageParentTree();
+        assertEquals(array.length(), count);
+        PDFStructElem first = (PDFStructElem) array.get(0);
+        Assert.assertSame(first, array.get(count - 1));
+        assertEquals(first.getKids().size(), count);
+    }
+
     @Test
     public void testDirectDescedants() throws IOException {
         PDFStructElem elem = new PDFStructElem();
@@ -16,6 +16,7 @@
  */
 package org.apache.fop.render.pdf.pdfbox;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
 
 import org.junit.Assert;
@@ -24,6 +25,9 @@ import org.junit.Test;
 import org.apache.commons.io.IOUtils;
 
 import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.io.RandomAccessReadBuffer;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
@@ -49,4 +53,70 @@ public class ImageConverterPDF2AFPTestCase {
             }
         }
     }
+
+    @Test
+    public void testPageCachedPerDocument() throws Exception {
+        try (PDDocument orgdoc = PDFBoxAdapterTestCase.load(PDFBoxAdapterTestCase.ANNOT)) {
+            ImageConverterPDF2AFP converter = new ImageConverterPDF2AFP();
+            ImagePDF first = new ImagePDF(new ImageInfo("x.pdf#page=1", ImagePDF.MIME_PDF), orgdoc);
+            ImagePDF second = new ImagePDF(new ImageInfo("x.pdf#page=1", ImagePDF.MIME_PDF), orgdoc);
+            ImageRawStream stream = (ImageRawStream) converter.convert(first, null);
+            byte[] pdf = IOUtils.toByteArray(stream.createInputStream());
+            Assert.assertArrayEquals(pdf, IOUtils.toByteArray(stream.createInputStream()));
+            stream = (ImageRawStream) converter.convert(second, null);
+            Assert.assertArrayEquals(pdf, IOUtils.toByteArray(stream.createInputStream()));
+            try (PDDocument doc = Loader.loadPDF(pdf)) {
+                Assert.assertEquals(doc.getNumberOfPages(), 1);
+                Assert.assertEquals(doc.getPage(0).getMediaBox().toString(),
+                        orgdoc.getPage(0).getMediaBox().toString());
+            }
+        }
+    }
+
+    @Test
+    public void testArticleThreadsNotCopied() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (PDDocument threaded = new PDDocument()) {
+            PDPage first = new PDPage();
+            PDPage second = new PDPage();
+            threaded.addPage(first);
+            threaded.addPage(second);
+            COSName bead = COSName.getPDFName("Bead");
+            COSName beads = COSName.getPDFName("B");
+            COSDictionary thread = new COSDictionary();
+            COSDictionary firstBead = new COSDictionary();
+            COSDictionary secondBead = new COSDictionary();
+            firstBead.setItem(COSName.TYPE, bead);
+            firstBead.setItem(COSName.T, thread);
+            firstBead.setItem(COSName.N, secondBead);
+            firstBead.setItem(COSName.V, secondBead);
+            firstBead.setItem(COSName.P, first);
+            secondBead.setItem(COSName.TYPE, bead);
+            secondBead.setItem(COSName.T, thread);
+            secondBead.setItem(COSName.N, firstBead);
+            secondBead.setItem(COSName.V, firstBead);
+            secondBead.setItem(COSName.P, second);
+            thread.setItem(COSName.F, firstBead);
+            COSArray threads = new COSArray();
+            threads.add(thread);
+            threaded.getDocumentCatalog().getCOSObject().setItem(COSName.getPDFName("Threads"), threads);
+            COSArray firstBeads = new COSArray();
+            firstBeads.add(firstBead);
+            first.getCOSObject().setItem(beads, firstBeads);
+            COSArray secondBeads = new COSArray();
+            secondBeads.add(secondBead);
+            second.getCOSObject().setItem(beads, secondBeads);
+            threaded.save(bos);
+        }
+        try (PDDocument orgdoc = Loader.loadPDF(bos.toByteArray())) {
+            ImagePDF imagePDF = new ImagePDF(new ImageInfo("x.pdf#page=1", ImagePDF.MIME_PDF), orgdoc);
+            ImageRawStream stream = (ImageRawStream) new ImageConverterPDF2AFP().convert(imagePDF, null);
+            try (PDDocument doc = Loader.loadPDF(IOUtils.toByteArray(stream.createInputStream()))) {
+                Assert.assertEquals(doc.getNumberOfPages(), 1);
+                Assert.assertFalse(doc.getPage(0).getCOSObject().containsKey(COSName.getPDFName("B")));
+                Assert.assertTrue(doc.getDocument().getObjectsByType(COSName.getPDFName("Bead")).isEmpty());
+                Assert.assertEquals(doc.getDocument().getObjectsByType(COSName.PAGE).size(), 1);
+            }
+        }
+    }
 }
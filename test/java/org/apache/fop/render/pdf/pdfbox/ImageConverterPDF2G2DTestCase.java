@@ -173,4 +173,21 @@ public class ImageConverterPDF2G2DTestCase {
         Assert.assertTrue(output.contains("/ImageMatrix [196 0 0 104 0 0]"));
         Assert.assertTrue(output.contains("/ImageMatrix [192 0 0 192 0 0]"));
     }
+
+    @Test
+    public void testRenderingProfile() {
+        Map<String, Object> hints = new HashMap<>();
+        Assert.assertEquals(RenderingProfile.get(hints), RenderingProfile.NORMAL);
+        Assert.assertEquals(RenderingProfile.NORMAL.getDPI(72), 144, 0);
+        Assert.assertEquals(RenderingProfile.NORMAL.getDPI(96), 96, 0);
+        hints.put(RenderingProfile.PROFILE, "draft");
+        Assert.assertEquals(RenderingProfile.get(hints), RenderingProfile.DRAFT);
+        Assert.assertEquals(RenderingProfile.DRAFT.getDPI(72), 72, 0);
+        Assert.assertEquals(RenderingProfile.HIGH.getDPI(96), 192, 0);
+        hints.put(RenderingProfile.MAX_DPI, "150");
+        hints.put(RenderingProfile.MAX_DPI + ".ps", "100");
+        Assert.assertEquals(RenderingProfile.capDPI(192, hints, "ps"), 100, 0);
+        Assert.assertEquals(RenderingProfile.capDPI(192, hints, "java2d"), 150, 0);
+        Assert.assertEquals(RenderingProfile.capDPI(96, hints, "java2d"), 96, 0);
+    }
 }
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.fop.pdf.PDFArray;
+import org.apache.fop.pdf.PDFDictionary;
+import org.apache.fop.pdf.PDFDocument;
+
+public class NameTreeBuilderTestCase {
+    private final Map<PDFDictionary, NameTreeBuilder> builders = new IdentityHashMap<PDFDictionary, NameTreeBuilder>();
+
+    @Test
+    public void testSmallTreeStaysFlat() {
+        PDFDictionary existing = createTree("b", 2);
+        PDFDictionary cloned = createTree("a", 2);
+        NameTreeBuilder.merge(builders, new PDFDocument(""), existing, cloned);
+        Assert.assertNull(cloned.get("Kids"));
+        PDFArray names = (PDFArray) cloned.get("Names");
+        Assert.assertEquals(8, names.length());
+        Assert.assertEquals("a0", names.get(0));
+        Assert.assertEquals("b1", names.get(6));
+    }
+
+    @Test
+    public void testBalancedTree() {
+        PDFDocument pdfDoc = new PDFDocument("");
+        PDFDictionary merged = createTree("a", 3000);
+        PDFDictionary cloned = createTree("b", 3000);
+        NameTreeBuilder.merge(builders, pdfDoc, merged, cloned);
+        merged = cloned;
+        cloned = createTree("a", 10);
+        //entries of the newly imported document replace existing ones of the same name
+        ((PDFArray) cloned.get("Names")).set(1, "new");
+        NameTreeBuilder.merge(builders, pdfDoc, merged, cloned);
+
+        List<Object> keys = new ArrayList<Object>();
+        List<Object> values = new ArrayList<Object>();
+        Assert.assertNull(cloned.get("Names"));
+        Assert.assertNull(cloned.get("Limits"));
+        collect(cloned, keys, values);
+        Assert.assertEquals(6000, keys.size());
+        for (int i = 1; i < keys.size(); i++) {
+            Assert.assertTrue(((String) keys.get(i - 1)).compareTo((String) keys.get(i)) < 0);
+        }
+        Assert.assertEquals("new", values.get(keys.indexOf("a0")));
+    }
+
+    @Test
+    public void testOnlyChangedLeavesRewritten() {
+        PDFDocument pdfDoc = new PDFDocument("");
+        PDFDictionary merged = createTree("a", 10);
+        PDFDictionary cloned = createTree("b", 1500);
+        NameTreeBuilder.merge(builders, pdfDoc, merged, cloned);
+        PDFDictionary firstLeaf = (PDFDictionary) ((PDFArray) cloned.get("Kids")).get(0);
+        Object firstNames = firstLeaf.get("Names");
+        merged = cloned;
+        cloned = createTree("c", 1);
+        NameTreeBuilder.merge(builders, pdfDoc, merged, cloned);
+        PDFArray kids = (PDFArray) cloned.get("Kids");
+        Assert.assertSame(firstLeaf, kids.get(0));
+        Assert.assertSame(firstNames, firstLeaf.get("Names"));
+        PDFDictionary lastLeaf = (PDFDictionary) kids.get(kids.length() - 1);
+        Assert.assertEquals("c0", ((PDFArray) lastLeaf.get("Limits")).get(1));
+    }
+
+    @Test
+    public void testMixedKeysSortedByBytes() {
+        //U+00E0 as UTF-16BE text string, which sorts after the single byte 0xE9 (U+00E9 in ISO-8859-1)
+        byte[] utf16 = {(byte) 0xFE, (byte) 0xFF, 0, (byte) 0xE0};
+        PDFArray existingNames = new PDFArray();
+        existingNames.add(new byte[] {(byte) 0xE9});
+        existingNames.add("first");
+        existingNames.add(utf16.clone());
+        existingNames.add("old");
+        PDFDictionary existing = new PDFDictionary();
+        existing.put("Names", existingNames);
+        PDFArray clonedNames = new PDFArray();
+        clonedNames.add(new PDFString(utf16));
+        clonedNames.add("new");
+        PDFDictionary cloned = new PDFDictionary();
+        cloned.put("Names", clonedNames);
+        NameTreeBuilder.merge(builders, new PDFDocument(""), existing, cloned);
+
+        List<Object> keys = new ArrayList<Object>();
+        List<Object> values = new ArrayList<Object>();
+        collect(cloned, keys, values);
+        //the text string has the same bytes as the existing key, so it replaces its entry
+        Assert.assertEquals(2, keys.size());
+        Assert.assertArrayEquals(new byte[] {(byte) 0xE9}, (byte[]) keys.get(0));
+        Assert.assertTrue(keys.get(1) instanceof PDFString);
+        Assert.assertEquals("first", values.get(0));
+        Assert.assertEquals("new", values.get(1));
+    }
+
+    private void collect(PDFDictionary node, List<Object> keys, List<Object> values) {
+        PDFArray names = (PDFArray) node.get("Names");
+        PDFArray kids = (PDFArray) node.get("Kids");
+        if (names != null) {
+            Assert.assertNull(kids);
+            Assert.assertTrue(names.length() <= 2 * NameTreeBuilder.MAX_ENTRIES);
+            for (int i = 0; i < names.length(); i += 2) {
+                keys.add(names.get(i));
+                values.add(names.get(i + 1));
+            }
+        } else {
+            Assert.assertTrue(kids.length() <= NameTreeBuilder.MAX_ENTRIES);
+            for (int i = 0; i < kids.length(); i++) {
+                PDFDictionary kid = (PDFDictionary) kids.get(i);
+                int first = keys.size();
+                collect(kid, keys, values);
+                PDFArray limits = (PDFArray) kid.get("Limits");
+                Assert.assertEquals(keys.get(first), limits.get(0));
+                Assert.assertEquals(keys.get(keys.size() - 1), limits.get(1));
+            }
+        }
+    }
+
+    private PDFDictionary createTree(String prefix, int count) {
+        PDFArray names = new PDFArray();
+        for (int i = 0; i < count; i++) {
+            names.add(prefix + i);
+            names.add(new PDFDictionary());
+        }
+        PDFDictionary root = new PDFDictionary();
+        root.put("Names", names);
+        return root;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import org.apache.fop.events.DefaultEventBroadcaster;
+import org.apache.fop.pdf.PDFDocument;
+import org.apache.fop.pdf.PDFPage;
+
+public class PDFBoxAdapterConcurrencyTestCase {
+
+    private static final int THREADS = 32;
+    private static final String[] SOURCES = {PDFBoxAdapterTestCase.ANNOT, PDFBoxAdapterTestCase.SHADING,
+        PDFBoxAdapterTestCase.LINK, PDFBoxAdapterTestCase.FORMROTATED, PDFBoxAdapterTestCase.PATTERN};
+
+    @Test
+    public void testSharedSourcesFromManyThreads() throws Exception {
+        List<PDDocument> docs = new ArrayList<PDDocument>();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (String source : SOURCES) {
+                docs.add(PDFBoxAdapterTestCase.load(source));
+            }
+            byte[][] expected = new byte[docs.size()][];
+            for (int i = 0; i < docs.size(); i++) {
+                render(docs.get(i));
+                expected[i] = render(docs.get(i));
+            }
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<byte[][]>> results = new ArrayList<Future<byte[][]>>();
+            for (int t = 0; t < THREADS; t++) {
+                final int offset = t;
+                final List<PDDocument> sources = docs;
+                results.add(executor.submit(new Callable<byte[][]>() {
+                    public byte[][] call() throws Exception {
+                        start.await();
+                        byte[][] outputs = new byte[sources.size()][];
+                        for (int i = 0; i < sources.size(); i++) {
+                            int index = (i + offset) % sources.size();
+                            outputs[index] = render(sources.get(index));
+                        }
+                        return outputs;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<byte[][]> result : results) {
+                byte[][] outputs = result.get(2, TimeUnit.MINUTES);
+                for (int i = 0; i < expected.length; i++) {
+                    Assert.assertArrayEquals(SOURCES[i], expected[i], outputs[i]);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            for (PDDocument doc : docs) {
+                doc.close();
+            }
+        }
+    }
+
+    private static byte[] render(PDDocument doc) throws IOException {
+        PDFDocument pdfdoc = new PDFDocument("");
+        //the output is compared byte for byte
+        pdfdoc.getInfo().setCreationDate(new Date(0));
+        PDFPage pdfpage = PDFBoxAdapterTestCase.getPDFPage(pdfdoc);
+        pdfdoc.assignObjectNumber(pdfpage);
+        pdfpage.setDocument(pdfdoc);
+        PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, new HashMap<>(), new HashMap<>(), new HashMap<>(),
+                new HashMap<>(), new DefaultEventBroadcaster());
+        Rectangle destRect = new Rectangle(0, 1650, 274818, 174879);
+        String stream = (String) adapter.createStreamFromPDFBoxPage(doc, doc.getPage(0), "key",
+                new AffineTransform(), null, destRect, new AffineTransform());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(stream.getBytes(StandardCharsets.UTF_8));
+        pdfdoc.output(bos);
+        return bos.toByteArray();
+    }
+}
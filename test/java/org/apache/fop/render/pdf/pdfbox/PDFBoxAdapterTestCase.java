@@ -28,6 +28,7 @@ import java.io.OutputStream;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -40,6 +41,8 @@ import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
@@ -51,6 +54,7 @@ import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSInteger;
 import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.io.RandomAccessReadBuffer;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
@@ -76,7 +80,9 @@ import org.apache.fop.pdf.PDFEncryptionParams;
 import org.apache.fop.pdf.PDFFormXObject;
 import org.apache.fop.pdf.PDFGState;
 import org.apache.fop.pdf.PDFMergeFontsParams;
+import org.apache.fop.pdf.PDFNumber;
 import org.apache.fop.pdf.PDFPage;
+import org.apache.fop.pdf.PDFReference;
 import org.apache.fop.pdf.PDFResources;
 import org.apache.fop.pdf.PDFStream;
 import org.apache.fop.render.pcl.PCLGenerator;
@@ -232,6 +238,27 @@ public class PDFBoxAdapterTestCase {
         }
     }
 
+    @Test
+    public void testPagesRegisteredPerCache() throws Exception {
+        PDFDocument pdfdoc = new PDFDocument("");
+        PDFPage pdfpage = getPDFPage(pdfdoc);
+        pdfpage.setDocument(pdfdoc);
+        pdfpage.setObjectNumber(1);
+        try (PDDocument doc = load(ACCESSIBLERADIOBUTTONS)) {
+            Object kid = PDFBoxAdapterUtil.getKids(doc).get(0);
+            Object key = PDFBoxAdapterUtil.getBaseKey(kid);
+            for (int i = 0; i < 2; i++) {
+                Map<Object, Object> objectCachePerFile = new HashMap<>();
+                PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, objectCachePerFile, new HashMap<>(),
+                        new HashMap<>(), new HashMap<>(), new DefaultEventBroadcaster());
+                AffineTransform pageAdjust = new AffineTransform();
+                Rectangle r = new Rectangle(0, 1650, 842000, 595000);
+                adapter.createStreamFromPDFBoxPage(doc, doc.getPage(0), "key", pageAdjust, null, r, pageAdjust);
+                assertTrue(objectCachePerFile.get(key) instanceof PDFArray);
+            }
+        }
+    }
+
     @Test
     public void testAnnotNoField() throws Exception {
         PDFDocument pdfdoc = new PDFDocument("");
@@ -252,6 +279,36 @@ public class PDFBoxAdapterTestCase {
         }
     }
 
+    @Test
+    public void testFieldListedTwice() throws Exception {
+        PDFDocument pdfdoc = new PDFDocument("");
+        Map<Object, Object> objectCachePerFile = new HashMap<>();
+        Map<Object, Object> renderCache = new HashMap<>();
+        List<PDFBoxAdapter> adapters = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            //the file is parsed again for each placement, as for deferred images
+            try (PDDocument doc = load(ACCESSIBLERADIOBUTTONS)) {
+                COSArray fields = (COSArray)
+                        doc.getDocumentCatalog().getAcroForm().getCOSObject().getDictionaryObject(COSName.FIELDS);
+                fields.add(fields.get(0));
+                PDFPage pdfpage = getPDFPage(pdfdoc);
+                pdfdoc.assignObjectNumber(pdfpage);
+                pdfpage.setDocument(pdfdoc);
+                PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, objectCachePerFile, new HashMap<>(),
+                        new HashMap<>(), new HashMap<>(), new DefaultEventBroadcaster());
+                adapter.shareImportState(renderCache);
+                AffineTransform pageAdjust = new AffineTransform();
+                Rectangle r = new Rectangle(0, 1650, 842000, 595000);
+                adapter.createStreamFromPDFBoxPage(doc, doc.getPage(0), ACCESSIBLERADIOBUTTONS + "#page=1",
+                        pageAdjust, null, r, pageAdjust);
+                adapters.add(adapter);
+            }
+        }
+        assertSame(adapters.get(0).getSource(), adapters.get(1).getSource());
+        PDFDictionary acroForm = (PDFDictionary) pdfdoc.getRoot().get("AcroForm");
+        assertEquals(1, ((PDFArray) acroForm.get("Fields")).length());
+    }
+
     @Test
     public void testLink() throws Exception {
         PDFDocument pdfdoc = new PDFDocument("");
@@ -493,6 +550,176 @@ public class PDFBoxAdapterTestCase {
         assertTrue(bos.size() <= 6418);
     }
 
+    @Test
+    public void testCloneDeeplyNestedArrays() throws IOException {
+        PDFDocument pdfdoc = new PDFDocument("");
+        PDFPage pdfpage = getPDFPage(pdfdoc);
+        pdfpage.setDocument(pdfdoc);
+        PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, new HashMap<>(), null, new HashMap<>(), new HashMap<>(),
+                new DefaultEventBroadcaster());
+        int depth = 100000;
+        COSArray root = new COSArray();
+        COSArray array = root;
+        for (int i = 0; i < depth; i++) {
+            COSArray nested = new COSArray();
+            array.add(nested);
+            array.add(COSInteger.get(i));
+            array = nested;
+        }
+        PDFArray cloned = (PDFArray) adapter.cloneForNewDocument(root);
+        for (int i = 0; i < depth; i++) {
+            assertEquals(2, cloned.length());
+            assertEquals((long) i, ((PDFNumber) cloned.get(1)).getNumber().longValue());
+            cloned = (PDFArray) cloned.get(0);
+        }
+        assertEquals(0, cloned.length());
+    }
+
+    @Test
+    public void testCloneDeeplyNestedDictionaries() throws IOException {
+        PDFDocument pdfdoc = new PDFDocument("");
+        PDFPage pdfpage = getPDFPage(pdfdoc);
+        pdfpage.setDocument(pdfdoc);
+        PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, new HashMap<>(), null, new HashMap<>(), new HashMap<>(),
+                new DefaultEventBroadcaster());
+        int depth = 100000;
+        COSDictionary root = makeNestedDictionary(depth, 0);
+        assertEquals(PDFBoxAdapterUtil.getBaseKey(makeNestedDictionary(depth, 0)), PDFBoxAdapterUtil.getBaseKey(root));
+        assertFalse(PDFBoxAdapterUtil.getBaseKey(makeNestedDictionary(depth, 1))
+                .equals(PDFBoxAdapterUtil.getBaseKey(root)));
+        PDFDictionary cloned = (PDFDictionary) adapter.cloneForNewDocument(root);
+        for (int i = 0; i < depth - 1; i++) {
+            assertEquals((long) i, ((PDFNumber) cloned.get("N")).getNumber().longValue());
+            cloned = (PDFDictionary) cloned.get("Next");
+        }
+        assertEquals((long) depth - 1, ((PDFNumber) cloned.get("N")).getNumber().longValue());
+        assertNull(cloned.get("Next"));
+    }
+
+    private static COSDictionary makeNestedDictionary(int depth, int innermostOffset) {
+        COSDictionary dict = new COSDictionary();
+        dict.setInt(COSName.N, depth - 1 + innermostOffset);
+        for (int i = depth - 2; i >= 0; i--) {
+            COSDictionary parent = new COSDictionary();
+            parent.setInt(COSName.N, i);
+            parent.setItem(COSName.NEXT, dict);
+            dict = parent;
+        }
+        return dict;
+    }
+
+    @Test
+    public void testLazyStreams() throws IOException {
+        String eager = importAndOutput(IMAGE, false);
+        String lazy = importAndOutput(IMAGE, true);
+        assertEquals(eager, lazy);
+    }
+
+    private String importAndOutput(String pdf, boolean lazy) throws IOException {
+        if (lazy) {
+            System.setProperty(PDFImagesConfig.LAZY_STREAMS, "true");
+        }
+        try {
+            PDFDocument pdfdoc = new PDFDocument("");
+            PDFPage pdfpage = getPDFPage(pdfdoc);
+            pdfdoc.assignObjectNumber(pdfpage);
+            pdfpage.setDocument(pdfdoc);
+            PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, new HashMap<>(), null, new HashMap<>(),
+                    new HashMap<>(), new DefaultEventBroadcaster());
+            PDDocument doc = load(pdf);
+            ImagePDF image = new ImagePDF(new ImageInfo(pdf, null), doc);
+            adapter.createStreamFromPDFBoxPage(
+                    doc, doc.getPage(0), pdf, new AffineTransform(), null, new Rectangle(), new AffineTransform());
+            image.close();
+            //the source stays open until the streams copied from it have been written
+            assertEquals(lazy, !doc.getDocument().isClosed());
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            pdfdoc.output(bos);
+            assertTrue(doc.getDocument().isClosed());
+            return bos.toString(StandardCharsets.ISO_8859_1.name());
+        } finally {
+            System.clearProperty(PDFImagesConfig.LAZY_STREAMS);
+        }
+    }
+
+    @Test
+    public void testReleaseClonesOfEarlierPages() throws IOException {
+        PDFDocument pdfdoc = new PDFDocument("");
+        Map<Object, Object> clonedVersion = new HashMap<Object, Object>();
+        Map<Object, Object> objectCache = new HashMap<Object, Object>();
+        Map<Object, Object> renderCache = new HashMap<Object, Object>();
+        try (PDDocument doc = load(IMAGE)) {
+            List<PDFPage> pages = new ArrayList<PDFPage>();
+            for (int i = 0; i < 2; i++) {
+                PDFPage pdfpage = getPDFPage(pdfdoc);
+                pdfdoc.assignObjectNumber(pdfpage);
+                pdfpage.setDocument(pdfdoc);
+                pages.add(pdfpage);
+                PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, clonedVersion, null, new HashMap<>(),
+                        objectCache, new DefaultEventBroadcaster());
+                adapter.shareImportState(renderCache);
+                adapter.releaseClonesOfEarlierPages();
+                adapter.createStreamFromPDFBoxPage(doc, doc.getPage(0), IMAGE, new AffineTransform(), null,
+                        new Rectangle(), new AffineTransform());
+                assertTrue(clonedVersion.get(IMAGE) instanceof String);
+            }
+            PDFPage nextPage = getPDFPage(pdfdoc);
+            nextPage.setDocument(pdfdoc);
+            ImportState.get(renderCache, pdfdoc).tracker.startPage(nextPage);
+            assertFalse(clonedVersion.containsKey(IMAGE));
+            assertFalse(objectCache.isEmpty());
+            for (Object stream : objectCache.values()) {
+                assertTrue(stream instanceof PDFReference);
+            }
+            //both pages use the same image
+            List<String> resources = new ArrayList<String>();
+            for (PDFPage pdfpage : pages) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                pdfpage.getPDFResources().output(bos);
+                resources.add(bos.toString(StandardCharsets.UTF_8.name()));
+            }
+            boolean shared = false;
+            for (Object stream : objectCache.values()) {
+                shared |= resources.get(0).contains(stream.toString()) && resources.get(1).contains(stream.toString());
+            }
+            assertTrue(shared);
+        }
+    }
+
+    @Test
+    public void testStreamsSharedByContent() throws IOException {
+        PDFDocument pdfdoc = new PDFDocument("");
+        //a clone of another stream found under the image's hash
+        PDFStream collision = new PDFStream();
+        pdfdoc.registerObject(collision);
+        List<String> resources = new ArrayList<String>();
+        Map<Object, Object> renderCache = new HashMap<Object, Object>();
+        for (int i = 0; i < 2; i++) {
+            //separate source documents and caches, as for files imported by different user agents
+            try (PDDocument doc = load(IMAGE)) {
+                PDPage page = doc.getPage(0);
+                COSDictionary xobjects = page.getResources().getCOSObject().getCOSDictionary(COSName.XOBJECT);
+                Map<Object, Object> objectCache = new HashMap<Object, Object>();
+                for (COSName name : xobjects.keySet()) {
+                    objectCache.put(PDFBoxAdapterUtil.getBaseKey(xobjects.getItem(name)), collision);
+                }
+                PDFPage pdfpage = getPDFPage(pdfdoc);
+                pdfdoc.assignObjectNumber(pdfpage);
+                pdfpage.setDocument(pdfdoc);
+                PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, new HashMap<>(), null, new HashMap<>(),
+                        objectCache, new DefaultEventBroadcaster());
+                adapter.shareImportState(renderCache);
+                adapter.createStreamFromPDFBoxPage(doc, page, IMAGE, new AffineTransform(), null, new Rectangle(),
+                        new AffineTransform());
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                pdfpage.getPDFResources().output(bos);
+                resources.add(bos.toString(StandardCharsets.UTF_8.name()));
+            }
+        }
+        assertFalse(resources.get(0).contains(collision.referencePDF()));
+        assertEquals(resources.get(0), resources.get(1));
+    }
+
     @Test
     public void testErrorMsgToPS() throws IOException {
         try (PDDocument doc = new PDDocument()) {
@@ -544,6 +771,32 @@ public class PDFBoxAdapterTestCase {
         }
     }
 
+    @Test
+    public void testImportPages() throws Exception {
+        ImageInfo imgi = new ImageInfo(LINK, "b");
+        try (PDDocument doc = load(LINK)) {
+            ImagePDF img = new ImagePDF(imgi, doc);
+            PDFDocument pdfdoc = new PDFDocument("");
+            List<PDFPage> pages = new ArrayList<PDFPage>();
+            for (int i = 0; i < doc.getNumberOfPages(); i++) {
+                PDFPage pdfpage = getPDFPage(pdfdoc);
+                pdfpage.setDocument(pdfdoc);
+                pdfdoc.assignObjectNumber(pdfpage);
+                pages.add(pdfpage);
+            }
+            FOUserAgent mockedAgent = mock(FOUserAgent.class);
+            when(mockedAgent.isAccessibilityEnabled()).thenReturn(false);
+            when(mockedAgent.getPDFObjectCache()).thenReturn(new SoftMapCache(true));
+            List<Object> streams = new PDFBoxImageHandler().importPages(img, 0, pages.size() - 1, pages,
+                    mockedAgent, null, new HashMap<String, Object>(), new HashMap<Integer, PDFArray>());
+            assertEquals(pages.size(), streams.size());
+            for (int i = 0; i < streams.size(); i++) {
+                assertFalse(((String) streams.get(i)).isEmpty());
+                assertSame(pdfdoc.getResources(), pages.get(i).getPDFResources().getParentResources());
+            }
+        }
+    }
+
     @Test
     public void testFormXObject() throws IOException {
         try (PDDocument doc = load(IMAGE)) {
@@ -558,6 +811,41 @@ public class PDFBoxAdapterTestCase {
         }
     }
 
+    @Test
+    public void testReusePagesPlacedAgain() throws IOException {
+        for (boolean mergeFonts : new boolean[] {false, true}) {
+            PDFDocument pdfdoc = new PDFDocument("");
+            if (mergeFonts) {
+                pdfdoc.setMergeFontsParams(new PDFMergeFontsParams(true));
+            }
+            Map<Object, Object> clonedVersion = new HashMap<Object, Object>();
+            Map<Object, Object> objectCache = new HashMap<Object, Object>();
+            Map<Object, Object> renderCache = new HashMap<Object, Object>();
+            FontInfo fontinfo = new FontInfo();
+            List<Object> streams = new ArrayList<Object>();
+            try (PDDocument doc = load(FontMergeTestCase.CFF1)) {
+                for (int i = 0; i < 3; i++) {
+                    PDFPage pdfpage = getPDFPage(pdfdoc);
+                    pdfdoc.assignObjectNumber(pdfpage);
+                    pdfpage.setDocument(pdfdoc);
+                    PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, clonedVersion, null, new HashMap<>(),
+                            objectCache, new DefaultEventBroadcaster());
+                    adapter.shareImportState(renderCache);
+                    adapter.reusePagesPlacedAgain();
+                    AffineTransform pageAdjust = new AffineTransform();
+                    streams.add(adapter.createStreamFromPDFBoxPage(doc, doc.getPage(0), FontMergeTestCase.CFF1,
+                            pageAdjust, fontinfo, new Rectangle(0, 0, 595000, 842000), pageAdjust));
+                }
+            }
+            assertTrue(streams.get(0) instanceof String);
+            assertTrue(streams.get(1) instanceof PDFFormXObject);
+            assertSame(streams.get(1), streams.get(2));
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ((PDFFormXObject) streams.get(1)).output(bos);
+            assertTrue(bos.toString(StandardCharsets.UTF_8.name()).contains("/Subtype /Form"));
+        }
+    }
+
     @Test
     public void testRewriteOfForms() throws IOException {
         assertTrue(getPDFToPDF(ACCESSIBLERADIOBUTTONS).contains("/F15106079 12 Tf"));
@@ -633,6 +921,146 @@ public class PDFBoxAdapterTestCase {
         assertFalse(bos.toString(StandardCharsets.UTF_8.name()).contains("/R 90"));
     }
 
+    @Test
+    public void testFormRotatedKeepsSourceMatrices() throws IOException {
+        PDFDocument pdfdoc = new PDFDocument("");
+        try (PDDocument doc = load(FORMROTATED)) {
+            List<String> matrices = getAppearanceMatrices(doc.getPage(0));
+            loadPage(pdfdoc, doc, new Rectangle());
+            assertEquals(matrices, getAppearanceMatrices(doc.getPage(0)));
+        }
+    }
+
+    private List<String> getAppearanceMatrices(PDPage page) {
+        List<String> matrices = new ArrayList<>();
+        COSArray annots = page.getCOSObject().getCOSArray(COSName.ANNOTS);
+        for (int i = 0; i < annots.size(); i++) {
+            for (COSObject stream : AppearanceStreams.getAppearanceStreams((COSDictionary) annots.getObject(i))) {
+                matrices.add(String.valueOf(((COSStream) stream.getObject()).getItem(COSName.MATRIX)));
+            }
+        }
+        return matrices;
+    }
+
+    @Test
+    public void testAppearanceStreamsShared() throws IOException {
+        PDFDocument pdfdoc = new PDFDocument("");
+        try (PDDocument doc = new PDDocument()) {
+            for (int i = 0; i < 2; i++) {
+                COSStream ap = doc.getDocument().createCOSStream();
+                ap.setItem(COSName.TYPE, COSName.XOBJECT);
+                ap.setItem(COSName.SUBTYPE, COSName.FORM);
+                ap.setItem(COSName.BBOX, new PDRectangle(10, 10).getCOSArray());
+                try (OutputStream os = ap.createOutputStream()) {
+                    os.write("0 0 10 10 re f".getBytes(StandardCharsets.US_ASCII));
+                }
+                COSDictionary appearance = new COSDictionary();
+                appearance.setItem(COSName.N, new COSObject(ap));
+                COSDictionary annot = new COSDictionary();
+                annot.setItem(COSName.TYPE, COSName.ANNOT);
+                annot.setItem(COSName.SUBTYPE, COSName.getPDFName("Square"));
+                annot.setItem(COSName.RECT, new PDRectangle(10, 10).getCOSArray());
+                annot.setItem(COSName.AP, appearance);
+                COSArray annots = new COSArray();
+                annots.add(new COSObject(annot));
+                PDPage page = new PDPage();
+                page.setContents(new PDStream(doc, new ByteArrayInputStream("q Q".getBytes(StandardCharsets.UTF_8))));
+                page.getCOSObject().setItem(COSName.ANNOTS, annots);
+                doc.addPage(page);
+            }
+            List<Map<Object, Object>> caches = new ArrayList<>();
+            Map<Object, Object> renderCache = new HashMap<>();
+            for (int i = 0; i < 2; i++) {
+                PDFPage pdfpage = getPDFPage(pdfdoc);
+                pdfdoc.assignObjectNumber(pdfpage);
+                pdfpage.setDocument(pdfdoc);
+                Map<Object, Object> objectCachePerFile = new HashMap<>();
+                PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, objectCachePerFile, new HashMap<>(),
+                        new HashMap<>(), new HashMap<>(), new DefaultEventBroadcaster());
+                adapter.shareImportState(renderCache);
+                adapter.createStreamFromPDFBoxPage(doc, doc.getPage(i), "key" + i, new AffineTransform(), null,
+                        new Rectangle(), new AffineTransform());
+                caches.add(objectCachePerFile);
+            }
+            Object shared = null;
+            for (Object o : caches.get(0).values()) {
+                if (o instanceof PDFStream) {
+                    shared = o;
+                }
+            }
+            Assert.assertNotNull(shared);
+            assertTrue(caches.get(1).containsValue(shared));
+        }
+    }
+
+    @Test
+    public void testAnnotationPlacementKeepsSourceRect() throws IOException {
+        PDFDocument pdfdoc = new PDFDocument("");
+        try (PDDocument doc = new PDDocument()) {
+            COSDictionary annot = new COSDictionary();
+            annot.setItem(COSName.TYPE, COSName.ANNOT);
+            annot.setItem(COSName.SUBTYPE, COSName.getPDFName("Square"));
+            annot.setItem(COSName.RECT, new PDRectangle(10, 10).getCOSArray());
+            COSArray annots = new COSArray();
+            annots.add(new COSObject(annot));
+            PDPage page = new PDPage();
+            page.setContents(new PDStream(doc, new ByteArrayInputStream("q Q".getBytes(StandardCharsets.UTF_8))));
+            page.getCOSObject().setItem(COSName.ANNOTS, annots);
+            doc.addPage(page);
+
+            PDFPage pdfpage = getPDFPage(pdfdoc);
+            pdfdoc.assignObjectNumber(pdfpage);
+            pdfpage.setDocument(pdfdoc);
+            PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, new HashMap<>(), new HashMap<>(), new HashMap<>(),
+                    new HashMap<>(), new DefaultEventBroadcaster());
+            adapter.createStreamFromPDFBoxPage(doc, page, "key", AffineTransform.getTranslateInstance(100, 200),
+                    null, new Rectangle(), new AffineTransform());
+
+            assertEquals("[0.0, 0.0, 10.0, 10.0]",
+                    Arrays.toString(annot.getCOSArray(COSName.RECT).toFloatArray()));
+            PDFDictionary clonedAnnot = (PDFDictionary) pdfpage.getAnnotations().get(0);
+            PDFArray rect = (PDFArray) clonedAnnot.get("Rect");
+            assertEquals(100.0, ((Number) rect.get(0)).doubleValue(), 0);
+            assertEquals(210.0, ((Number) rect.get(3)).doubleValue(), 0);
+        }
+    }
+
+    @Test
+    public void testAnnotationPlacedPerTargetPage() throws IOException {
+        PDFDocument pdfdoc = new PDFDocument("");
+        try (PDDocument doc = new PDDocument()) {
+            COSDictionary annot = new COSDictionary();
+            annot.setItem(COSName.TYPE, COSName.ANNOT);
+            annot.setItem(COSName.SUBTYPE, COSName.getPDFName("Square"));
+            annot.setItem(COSName.RECT, new PDRectangle(10, 10).getCOSArray());
+            COSArray annots = new COSArray();
+            annots.add(new COSObject(annot));
+            PDPage page = new PDPage();
+            page.setContents(new PDStream(doc, new ByteArrayInputStream("q Q".getBytes(StandardCharsets.UTF_8))));
+            page.getCOSObject().setItem(COSName.ANNOTS, annots);
+            doc.addPage(page);
+
+            Map<Object, Object> objectCachePerFile = new HashMap<>();
+            Map<Object, Object> renderCache = new HashMap<>();
+            List<PDFDictionary> placed = new ArrayList<>();
+            for (int x : new int[] {100, 300}) {
+                PDFPage pdfpage = getPDFPage(pdfdoc);
+                pdfdoc.assignObjectNumber(pdfpage);
+                pdfpage.setDocument(pdfdoc);
+                PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, objectCachePerFile, new HashMap<>(),
+                        new HashMap<>(), new HashMap<>(), new DefaultEventBroadcaster());
+                adapter.shareImportState(renderCache);
+                adapter.createStreamFromPDFBoxPage(doc, page, "key", AffineTransform.getTranslateInstance(x, 200),
+                        null, new Rectangle(), new AffineTransform());
+                placed.add((PDFDictionary) pdfpage.getAnnotations().get(0));
+            }
+
+            Assert.assertNotSame(placed.get(0), placed.get(1));
+            assertEquals(100.0, ((Number) ((PDFArray) placed.get(0).get("Rect")).get(0)).doubleValue(), 0);
+            assertEquals(300.0, ((Number) ((PDFArray) placed.get(1).get("Rect")).get(0)).doubleValue(), 0);
+        }
+    }
+
     private String getAnnotationsID(PDFPage page) throws IOException {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         page.getAnnotations().output(os);
@@ -705,6 +1133,21 @@ public class PDFBoxAdapterTestCase {
         }
     }
 
+    @Test
+    public void testPatternMatrixPlacedTwice() throws Exception {
+        try (PDDocument doc = load(SHADING)) {
+            Rectangle destRect = new Rectangle(0, 1650, 274818, 174879);
+            for (int i = 0; i < 2; i++) {
+                PDFDocument pdfdoc = new PDFDocument("");
+                loadPage(pdfdoc, doc, destRect);
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                pdfdoc.output(bos);
+                assertTrue(removeWhiteSpace(bos).contains(
+                        "/Matrix [53.8858833313 0 0 -26.4968185425 72.7459411621 -20.8601989746]"));
+            }
+        }
+    }
+
     @Test
     public void testPatternMatrixWithPageAdjust() throws Exception {
         try (PDDocument doc = load(SHADING)) {
@@ -798,4 +1241,28 @@ public class PDFBoxAdapterTestCase {
         outlines.output(bos);
         assertEquals("<< /First 1 0 R /Last 1 0 R >>", bos.toString("UTF-8"));
     }
+
+    @Test
+    public void testCatalogMergedOncePerSourceFile() throws IOException {
+        PDFDocument pdfdoc = new PDFDocument("");
+        Map<Object, Object> renderCache = new HashMap<>();
+        List<Object> outlines = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            //the file is parsed again for each placement, as for deferred images
+            try (PDDocument doc = load(BOOKMARKS)) {
+                PDFPage pdfpage = getPDFPage(pdfdoc);
+                pdfdoc.assignObjectNumber(pdfpage);
+                pdfpage.setDocument(pdfdoc);
+                PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, new HashMap<>(), new HashMap<>(),
+                        new HashMap<>(), new HashMap<>(), new DefaultEventBroadcaster());
+                adapter.shareImportState(renderCache);
+                AffineTransform pageAdjust = new AffineTransform();
+                adapter.createStreamFromPDFBoxPage(doc, doc.getPage(0), BOOKMARKS, pageAdjust, null,
+                        new Rectangle(), pageAdjust);
+                outlines.add(pdfdoc.getRoot().get("Outlines"));
+            }
+        }
+        Assert.assertNotNull(outlines.get(0));
+        assertSame(outlines.get(0), outlines.get(1));
+    }
 }
@@ -18,10 +18,14 @@
 /* $Id$ */
 package org.apache.fop.render.pdf.pdfbox;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -78,4 +82,56 @@ public class PSPDFGraphics2DTestCase {
         Assert.assertTrue(bos.toString().contains("/Encode [ 0 1 0 1 1 0 ]"));
         Assert.assertTrue(bos.toString().contains("/MaskColor [ 0 0 0 ]"));
     }
+
+    @Test
+    public void testPatternDefinedOnce() throws Exception {
+        String ps = PDFBoxAdapterTestCase.pdfToPS("gradientmask.pdf").toString();
+        int definition = ps.indexOf("/FOPPDFPattern0 {");
+        Assert.assertTrue(definition >= 0);
+        Assert.assertEquals(ps.indexOf("/FOPPDFPattern0 {", definition + 1), -1);
+        Assert.assertTrue(ps.indexOf("FOPPDFPattern0\n", definition) > 0);
+    }
+
+    @Test
+    public void testMask() {
+        for (int type : new int[] {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR}) {
+            BufferedImage img = new BufferedImage(20, 10, type);
+            Assert.assertEquals(PSPDFGraphics2D.getMask(img), Color.white);
+            img.setRGB(5, 5, Color.white.getRGB());
+            Assert.assertEquals(PSPDFGraphics2D.getMask(img), Color.black);
+            img.setRGB(19, 9, Color.black.getRGB());
+            Assert.assertEquals(PSPDFGraphics2D.getMask(img), Color.white);
+        }
+    }
+
+    @Test
+    public void testConvertToRGB() {
+        Random random = new Random(1);
+        for (int type : new int[] {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR}) {
+            for (int size : new int[] {7, 1100}) {
+                BufferedImage img = new BufferedImage(size, size, type);
+                for (int y = 0; y < size; y++) {
+                    for (int x = 0; x < size; x++) {
+                        img.setRGB(x, y, random.nextInt());
+                    }
+                }
+                BufferedImage expected = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = expected.createGraphics();
+                g.setColor(Color.black);
+                g.fillRect(0, 0, size, size);
+                g.drawImage(img, 0, 0, null);
+                g.dispose();
+                BufferedImage actual = (BufferedImage) PSPDFGraphics2D.convertToRGB(img, Color.black);
+                for (int y = 0; y < size; y++) {
+                    for (int x = 0; x < size; x++) {
+                        int a = actual.getRGB(x, y);
+                        int e = expected.getRGB(x, y);
+                        for (int shift = 0; shift < 24; shift += 8) {
+                            Assert.assertTrue(Math.abs(((a >> shift) & 0xFF) - ((e >> shift) & 0xFF)) <= 1);
+                        }
+                    }
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import org.apache.xmlgraphics.image.loader.ImageException;
+import org.apache.xmlgraphics.image.loader.ImageInfo;
+import org.apache.xmlgraphics.image.loader.ImageSource;
+import org.apache.xmlgraphics.image.loader.impl.DefaultImageContext;
+
+public class PageGeometryIndexTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordFlushAndCompact() throws IOException {
+        File pdf = copy(PDFBoxAdapterTestCase.ROTATE);
+        File indexFile = new File(folder.getRoot(), "index.txt");
+        PageGeometryIndex index = PageGeometryIndex.get(indexFile);
+        Assert.assertNull(index.lookup(pdf));
+        try (PDDocument doc = Loader.loadPDF(pdf)) {
+            index.record(pdf, doc);
+        }
+        int[][] pages = index.lookup(pdf);
+        Assert.assertEquals(1, pages.length);
+        index.flush();
+
+        List<String> lines = Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8);
+        Assert.assertEquals("version=" + PageGeometryIndex.VERSION, lines.get(1));
+        Assert.assertEquals(3, lines.size());
+        Assert.assertEquals(0, PageGeometryIndex.compact(indexFile.toPath()));
+
+        try (OutputStream os = new FileOutputStream(pdf, true)) {
+            os.write('\n');
+        }
+        Assert.assertNull(index.lookup(pdf));
+        Assert.assertEquals(1, PageGeometryIndex.compact(indexFile.toPath()));
+        Assert.assertEquals(2, Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void testPreloadFromIndex() throws Exception {
+        File pdf = copy(PDFBoxAdapterTestCase.ROTATE);
+        File indexFile = new File(folder.getRoot(), "preload-index.txt");
+        System.setProperty(PDFImagesConfig.GEOMETRY_INDEX, indexFile.getAbsolutePath());
+        try {
+            ImageInfo first = preload(pdf);
+            Assert.assertTrue(((ImagePDF) first.getOriginalImage()).isLoaded());
+            ImageInfo second = preload(pdf);
+            ImagePDF img = (ImagePDF) second.getOriginalImage();
+            Assert.assertFalse(img.isLoaded());
+            Assert.assertEquals(first.getSize().getWidthMpt(), second.getSize().getWidthMpt());
+            Assert.assertEquals(first.getSize().getHeightMpt(), second.getSize().getHeightMpt());
+            Assert.assertEquals(1, img.getPDDocument().getNumberOfPages());
+            img.close();
+            ((ImagePDF) first.getOriginalImage()).close();
+        } finally {
+            System.clearProperty(PDFImagesConfig.GEOMETRY_INDEX);
+        }
+    }
+
+    private ImageInfo preload(File pdf) throws IOException, ImageException {
+        ImageSource imageSource = new ImageSource(ImageIO.createImageInputStream(pdf), pdf.toURI().toString(), true);
+        return new PreloaderPDF().preloadImage(pdf.toURI().toString(), imageSource, new DefaultImageContext());
+    }
+
+    private File copy(String resource) throws IOException {
+        File file = folder.newFile(resource);
+        try (InputStream is = PageGeometryIndexTestCase.class.getResourceAsStream(resource);
+             OutputStream os = new FileOutputStream(file)) {
+            IOUtils.copy(is, os);
+        }
+        return file;
+    }
+}
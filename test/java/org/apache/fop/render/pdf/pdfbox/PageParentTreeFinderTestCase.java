@@ -106,4 +106,32 @@ public class PageParentTreeFinderTestCase {
             Assert.assertEquals(numList.size(), 3);
         }
     }
+
+    @Test
+    public void testIndexSharedPerDocument() throws IOException {
+        try (PDDocument doc = PDFBoxAdapterTestCase.load(LINK)) {
+            COSArray first = new PageParentTreeFinder(doc.getPage(0)).getPageParentTreeArray(doc);
+            COSArray second = new PageParentTreeFinder(doc.getPage(0)).getPageParentTreeArray(doc);
+            Assert.assertSame(first, second);
+            Assert.assertSame(StructureTreeIndex.get(doc), StructureTreeIndex.get(doc));
+        }
+    }
+
+    @Test
+    public void testOwningPage() {
+        COSDictionary page = new COSDictionary();
+        COSDictionary otherPage = new COSDictionary();
+        COSDictionary root = new COSDictionary();
+        COSDictionary parent = new COSDictionary();
+        parent.setItem(COSName.P, root);
+        parent.setItem(COSName.PG, page);
+        COSDictionary elem = new COSDictionary();
+        elem.setItem(COSName.P, parent);
+        COSDictionary orphan = new COSDictionary();
+        orphan.setItem(COSName.P, root);
+        StructureTreeIndex index = new StructureTreeIndex();
+        Assert.assertTrue(index.isOnPage(elem, page));
+        Assert.assertFalse(index.isOnPage(elem, otherPage));
+        Assert.assertTrue(index.isOnPage(orphan, otherPage));
+    }
 }
@@ -20,9 +20,16 @@ import java.awt.image.DataBufferInt;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 import javax.imageio.stream.ImageInputStream;
@@ -31,6 +38,7 @@ import javax.imageio.stream.MemoryCacheImageInputStream;
 import org.junit.Assert;
 import org.junit.Test;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.pdfbox.pdmodel.PDDocument;
 
@@ -85,6 +93,125 @@ public class PreloaderPDFTestCase {
         }
     }
 
+    @Test
+    public void testDeferredLoading() throws Exception {
+        ImageInfo expected = preload();
+        System.setProperty(PDFImagesConfig.DEFERRED_LOADING, "true");
+        try {
+            ImageInfo imageInfo = preload();
+            Assert.assertEquals(expected.getSize().getWidthMpt(), imageInfo.getSize().getWidthMpt());
+            Assert.assertEquals(expected.getSize().getHeightMpt(), imageInfo.getSize().getHeightMpt());
+            ImagePDF img = (ImagePDF) imageInfo.getOriginalImage();
+            //a stream without a local file is kept as raw bytes
+            Assert.assertTrue(img.getDocumentMaker() instanceof PreloaderPDF.DeferredDocumentMaker);
+            Assert.assertFalse(img.isLoaded());
+            Assert.assertEquals(1, img.getPDDocument().getNumberOfPages());
+            Assert.assertTrue(img.isLoaded());
+            img.close();
+        } finally {
+            System.clearProperty(PDFImagesConfig.DEFERRED_LOADING);
+        }
+    }
+
+    @Test
+    public void testDeferredLoadingFromFile() throws Exception {
+        File file = File.createTempFile("deferred", ".pdf");
+        System.setProperty(PDFImagesConfig.DEFERRED_LOADING, "true");
+        try {
+            try (InputStream is = PreloaderPDFTestCase.class.getResourceAsStream(PDFBoxAdapterTestCase.ROTATE)) {
+                FileUtils.copyInputStreamToFile(is, file);
+            }
+            ImageSource imageSource = new ImageSource(ImageIO.createImageInputStream(file),
+                    file.toURI().toString(), true);
+            ImageInfo imageInfo = new PreloaderPDF().preloadImage("", imageSource, new DefaultImageContext());
+            ImagePDF img = (ImagePDF) imageInfo.getOriginalImage();
+            //only the path of a local file is kept, it's opened from disk again when the page is needed
+            Assert.assertTrue(img.getDocumentMaker() instanceof PreloaderPDF.FileDocumentMaker);
+            Assert.assertFalse(img.isLoaded());
+            Assert.assertEquals(1, img.getPDDocument().getNumberOfPages());
+            img.close();
+        } finally {
+            System.clearProperty(PDFImagesConfig.DEFERRED_LOADING);
+            file.delete();
+        }
+    }
+
+    private ImageInfo preload() throws IOException, ImageException {
+        try (InputStream is = PreloaderPDFTestCase.class.getResourceAsStream(PDFBoxAdapterTestCase.ROTATE)) {
+            ImageSource imageSource = new ImageSource(ImageIO.createImageInputStream(is), "", true);
+            return new PreloaderPDF().preloadImage("", imageSource, new DefaultImageContext());
+        }
+    }
+
+    @Test
+    public void testPrefetchCap() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            DocumentPrefetcher prefetcher = new DocumentPrefetcher(executor, 4 * 1024);
+            Cache.ValueMaker<PDDocument> maker = new Cache.ValueMaker<PDDocument>() {
+                public PDDocument make() throws IOException {
+                    return PDFBoxAdapterTestCase.load(PDFBoxAdapterTestCase.ROTATE);
+                }
+            };
+            Object owner = new Object();
+            DocumentPrefetcher.Prefetch first = prefetcher.prefetch(maker, 3 * 1024, owner);
+            Assert.assertNotNull(first);
+            Assert.assertNull(prefetcher.prefetch(maker, 2 * 1024, owner));
+            try (PDDocument doc = first.join()) {
+                Assert.assertEquals(1, doc.getNumberOfPages());
+            }
+            Assert.assertEquals(4, prefetcher.availableKilobytes());
+            prefetcher.prefetch(maker, 1024, owner).cancel();
+            Assert.assertEquals(4, prefetcher.availableKilobytes());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCancelWhileLoading() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final PDDocument[] loaded = new PDDocument[1];
+        DocumentPrefetcher prefetcher = new DocumentPrefetcher(executor, 4 * 1024);
+        Cache.ValueMaker<PDDocument> maker = new Cache.ValueMaker<PDDocument>() {
+            public PDDocument make() throws Exception {
+                loading.countDown();
+                proceed.await();
+                loaded[0] = PDFBoxAdapterTestCase.load(PDFBoxAdapterTestCase.ROTATE);
+                return loaded[0];
+            }
+        };
+        Object owner = new Object();
+        DocumentPrefetcher.Prefetch prefetch = prefetcher.prefetch(maker, 1024, owner);
+        loading.await();
+        prefetch.cancel();
+        proceed.countDown();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        Assert.assertTrue(loaded[0].getDocument().isClosed());
+        Assert.assertEquals(4, prefetcher.availableKilobytes());
+    }
+
+    @Test
+    public void testInterceptorScopedToContext() throws IOException, ImageException {
+        final AtomicInteger intercepted = new AtomicInteger();
+        DefaultImageContext context = new DefaultImageContext();
+        Interceptors.getInstance(context).setOnLoad(new OnLoadInterceptor() {
+            public PDDocument intercept(PDDocument doc, URI uri) {
+                intercepted.incrementAndGet();
+                return doc;
+            }
+        });
+        readPDF(context);
+        int count = intercepted.get();
+        Assert.assertTrue(count > 0);
+        readPDF(new DefaultImageContext());
+        Assert.assertEquals(count, intercepted.get());
+        Assert.assertSame(Interceptors.getInstance(context), Interceptors.getInstance(context));
+    }
+
     @Test
     public void testLastResortPreloaderPDF() throws Exception {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
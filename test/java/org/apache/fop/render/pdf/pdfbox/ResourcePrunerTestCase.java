@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+
+public class ResourcePrunerTestCase {
+
+    @Test
+    public void testUnusedResourcesRemoved() throws IOException {
+        try (PDDocument doc = new PDDocument()) {
+            COSDictionary fonts = new COSDictionary();
+            fonts.setItem("F1", new COSDictionary());
+            fonts.setItem("F2", new COSDictionary());
+            fonts.setItem("F3", new COSDictionary());
+            COSDictionary xobjects = new COSDictionary();
+            //a form without resources of its own uses the page's
+            xobjects.setItem("Fm1", createForm("/F2 10 Tf"));
+            xobjects.setItem("Fm2", createForm("/F3 10 Tf"));
+            COSDictionary resources = new COSDictionary();
+            resources.setItem(COSName.FONT, fonts);
+            resources.setItem(COSName.XOBJECT, xobjects);
+            resources.setItem(COSName.PROC_SET, new COSArray());
+            PDPage page = createPage(doc, resources, "BT /F1 12 Tf (a) Tj ET /Fm1 Do");
+
+            COSDictionary pruned = ResourcePruner.prune(resources, page);
+            COSDictionary prunedFonts = pruned.getCOSDictionary(COSName.FONT);
+            Assert.assertEquals(2, prunedFonts.size());
+            Assert.assertTrue(prunedFonts.containsKey("F1"));
+            Assert.assertTrue(prunedFonts.containsKey("F2"));
+            COSDictionary prunedXObjects = pruned.getCOSDictionary(COSName.XOBJECT);
+            Assert.assertEquals(1, prunedXObjects.size());
+            Assert.assertTrue(prunedXObjects.containsKey("Fm1"));
+            Assert.assertTrue(pruned.containsKey(COSName.PROC_SET));
+            //the source document is left unchanged
+            Assert.assertEquals(3, fonts.size());
+            Assert.assertEquals(2, xobjects.size());
+        }
+    }
+
+    @Test
+    public void testAllResourcesUsed() throws IOException {
+        try (PDDocument doc = new PDDocument()) {
+            COSDictionary fonts = new COSDictionary();
+            fonts.setItem("F1", new COSDictionary());
+            COSDictionary resources = new COSDictionary();
+            resources.setItem(COSName.FONT, fonts);
+            PDPage page = createPage(doc, resources, "BT /F1 12 Tf (a) Tj ET");
+            Assert.assertSame(resources, ResourcePruner.prune(resources, page));
+        }
+    }
+
+    private PDPage createPage(PDDocument doc, COSDictionary resources, String content) throws IOException {
+        PDPage page = new PDPage();
+        page.setResources(new PDResources(resources));
+        page.setContents(new PDStream(doc, new ByteArrayInputStream(content.getBytes(StandardCharsets.US_ASCII))));
+        doc.addPage(page);
+        return page;
+    }
+
+    private COSStream createForm(String content) throws IOException {
+        COSStream form = new COSStream();
+        form.setItem(COSName.SUBTYPE, COSName.FORM);
+        try (OutputStream out = form.createOutputStream()) {
+            out.write(content.getBytes(StandardCharsets.US_ASCII));
+        }
+        return form;
+    }
+}